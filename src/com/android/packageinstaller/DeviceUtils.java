@@ -27,6 +27,6 @@ public class DeviceUtils {
     }
 
     public static boolean isWear(final Context context) {
-        return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WATCH);
+        return SystemFeatures.get(context).hasSystemFeature(PackageManager.FEATURE_WATCH);
     }
 }
@@ -29,34 +29,31 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.IntentSender;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.PackageParser;
 import android.content.pm.PackageParser.PackageLite;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.StrictMode;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
-import com.android.packageinstaller.permission.utils.IoUtils;
 
 import com.android.internal.content.PackageHelper;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.List;
 
 /**
@@ -75,6 +72,8 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
             "android.permission.INSTALL_PACKAGES";
     private ApplicationInfo mAppInfo;
     private Uri mPackageURI;
+    // Set when PackageInstallerActivity already streamed the APK into a session
+    private StagedSession mStagedSession;
     private ProgressBar mProgressBar;
     private View mOkPanel;
     private TextView mStatusTextView;
@@ -87,11 +86,17 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
     private CharSequence mLabel;
     private HandlerThread mInstallThread;
     private Handler mInstallHandler;
+    private StrictMode.ThreadPolicy mOldThreadPolicy;
+    private InstallProgressTracker mProgressTracker;
 
     private Handler mHandler = new Handler() {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case INSTALL_COMPLETE:
+                    mProgressTracker.stop();
+                    mProgressTracker.logSummary(mAppInfo.packageName, msg.arg1);
+                    InstalledPackageIndex.get(InstallAppProgress.this)
+                            .invalidate(mAppInfo.packageName);
                     if (getIntent().getBooleanExtra(Intent.EXTRA_RETURN_RESULT, false)) {
                         Intent result = new Intent();
                         result.putExtra(Intent.EXTRA_INSTALL_RESULT, msg.arg1);
@@ -189,13 +194,30 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
+        if (Build.IS_DEBUGGABLE) {
+            // All disk work belongs on the install thread; flag any that creeps back.
+            mOldThreadPolicy = StrictMode.getThreadPolicy();
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectCustomSlowCalls()
+                    .penaltyLog()
+                    .penaltyDropBox()
+                    .build());
+        }
         Intent intent = getIntent();
         mAppInfo = intent.getParcelableExtra(PackageUtil.INTENT_ATTR_APPLICATION_INFO);
         mPackageURI = intent.getData();
 
-        final String scheme = mPackageURI.getScheme();
-        if (scheme != null && !"file".equals(scheme) && !"package".equals(scheme)) {
-            throw new IllegalArgumentException("unexpected scheme " + scheme);
+        final int stagedSessionId =
+                intent.getIntExtra(PackageUtil.INTENT_ATTR_STAGED_SESSION_ID, -1);
+        if (stagedSessionId != -1) {
+            mStagedSession = StagedSession.open(this, stagedSessionId);
+        } else {
+            final String scheme = mPackageURI.getScheme();
+            if (scheme != null && !"file".equals(scheme) && !"package".equals(scheme)) {
+                throw new IllegalArgumentException("unexpected scheme " + scheme);
+            }
         }
 
         mInstallThread = new HandlerThread("InstallThread");
@@ -257,78 +279,77 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
     }
 
     int getInstallFlags(String packageName) {
-        PackageManager pm = getPackageManager();
-        try {
-            PackageInfo pi =
-                    pm.getPackageInfo(packageName, PackageManager.GET_UNINSTALLED_PACKAGES);
-            if (pi != null) {
-                return PackageManager.INSTALL_REPLACE_EXISTING;
-            }
-        } catch (NameNotFoundException e) {
+        if (InstalledPackageIndex.get(this).get(packageName) != null) {
+            return PackageManager.INSTALL_REPLACE_EXISTING;
         }
         return 0;
     }
 
     private void doPackageStage(PackageManager pm, PackageInstaller.SessionParams params) {
-        final PackageInstaller packageInstaller = pm.getPackageInstaller();
-        PackageInstaller.Session session = null;
+        StagedSession session = null;
         try {
-            final String packageLocation = mPackageURI.getPath();
-            final File file = new File(packageLocation);
-            final int sessionId = packageInstaller.createSession(params);
-            final byte[] buffer = new byte[65536];
-
-            session = packageInstaller.openSession(sessionId);
-
-            final InputStream in = new FileInputStream(file);
-            final long sizeBytes = file.length();
-            final OutputStream out = session.openWrite("PackageInstaller", 0, sizeBytes);
-            try {
-                int c;
-                while ((c = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, c);
-                    if (sizeBytes > 0) {
-                        final float fraction = ((float) c / (float) sizeBytes);
-                        session.addProgress(fraction);
-                    }
+            // A directory holds a package split in several APKs.
+            final List<StagedSession.Source> sources =
+                    StagedSession.Source.forFile(new File(mPackageURI.getPath()));
+            session = StagedSession.create(this, params);
+            mProgressTracker.onSessionCreated(session.getSessionId(),
+                    StagedSession.getSizeBytes(sources));
+            session.write(sources, new StreamTransfer.Listener() {
+                @Override
+                public boolean onProgress(long bytesCopied) {
+                    mProgressTracker.onBytesCopied(bytesCopied);
+                    return true;
                 }
-                session.fsync(out);
-            } finally {
-                IoUtils.closeQuietly(in);
-                IoUtils.closeQuietly(out);
+            });
+
+            mProgressTracker.onCommitted();
+            session.commit(getCommitReceiver(session.getSessionId()));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not stage " + mPackageURI, e);
+            if (session != null) {
+                session.abandon();
             }
+            onPackageInstalled(PackageInstaller.STATUS_FAILURE);
+        }
+    }
 
-            // Create a PendingIntent and use it to generate the IntentSender
-            Intent broadcastIntent = new Intent(BROADCAST_ACTION);
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(
-                    InstallAppProgress.this /*context*/,
-                    sessionId,
-                    broadcastIntent,
-                    PendingIntent.FLAG_UPDATE_CURRENT);
-            session.commit(pendingIntent.getIntentSender());
+    private void commitStagedSession() {
+        mProgressTracker.onSessionCreated(mStagedSession.getSessionId(), -1);
+        mProgressTracker.onCommitted();
+        try {
+            mStagedSession.commit(getCommitReceiver(mStagedSession.getSessionId()));
         } catch (IOException e) {
+            Log.e(TAG, "Could not commit the staged session", e);
+            mStagedSession.abandon();
             onPackageInstalled(PackageInstaller.STATUS_FAILURE);
-        } finally {
-            IoUtils.closeQuietly(session);
         }
     }
 
+    private IntentSender getCommitReceiver(int sessionId) {
+        // Create a PendingIntent and use it to generate the IntentSender
+        Intent broadcastIntent = new Intent(BROADCAST_ACTION);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(
+                InstallAppProgress.this /*context*/,
+                sessionId,
+                broadcastIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        return pendingIntent.getIntentSender();
+    }
+
     void initView() {
         setContentView(R.layout.op_progress);
 
-        final PackageUtil.AppSnippet as;
         final PackageManager pm = getPackageManager();
-        final int installFlags = getInstallFlags(mAppInfo.packageName);
 
-        if((installFlags & PackageManager.INSTALL_REPLACE_EXISTING )!= 0) {
-            Log.w(TAG, "Replacing package:" + mAppInfo.packageName);
-        }
-        if ("package".equals(mPackageURI.getScheme())) {
-            as = new PackageUtil.AppSnippet(pm.getApplicationLabel(mAppInfo),
-                    pm.getApplicationIcon(mAppInfo));
+        // Show what is already in memory right away, and load the rest with the install.
+        final ParsedPackageCache.Entry shown = peekParsedPackage();
+        final PackageUtil.AppSnippet as;
+        if (shown != null) {
+            as = shown.snippet;
         } else {
-            final File sourceFile = new File(mPackageURI.getPath());
-            as = PackageUtil.getAppSnippet(this, mAppInfo, sourceFile);
+            as = new PackageUtil.AppSnippet(mAppInfo.nonLocalizedLabel != null
+                    ? mAppInfo.nonLocalizedLabel : mAppInfo.packageName,
+                    pm.getDefaultActivityIcon());
         }
         mLabel = as.label;
         PackageUtil.initSnippetForNewApp(this, as, R.id.app_snippet);
@@ -341,7 +362,36 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
         mDoneButton = (Button)findViewById(R.id.done_button);
         mLaunchButton = (Button)findViewById(R.id.launch_button);
         mOkPanel.setVisibility(View.INVISIBLE);
+        mProgressTracker = new InstallProgressTracker(this, mProgressBar,
+                (TextView) findViewById(R.id.progress_detail));
+
+        // Everything below reads the disk or calls the package manager.
+        mInstallHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (shown == null || !isParsedPackageCurrent(shown)) {
+                    final PackageUtil.AppSnippet loaded = loadAppSnippet();
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mLabel = loaded.label;
+                            PackageUtil.initSnippetForNewApp(InstallAppProgress.this, loaded,
+                                    R.id.app_snippet);
+                        }
+                    });
+                }
+                install(pm);
+            }
+        });
+    }
 
+    private void install(PackageManager pm) {
+        mProgressTracker.register();
+        final int installFlags = getInstallFlags(mAppInfo.packageName);
+
+        if((installFlags & PackageManager.INSTALL_REPLACE_EXISTING )!= 0) {
+            Log.w(TAG, "Replacing package:" + mAppInfo.packageName);
+        }
         if ("package".equals(mPackageURI.getScheme())) {
             try {
                 pm.installExistingPackage(mAppInfo.packageName);
@@ -349,44 +399,112 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
             } catch (PackageManager.NameNotFoundException e) {
                 onPackageInstalled(PackageInstaller.STATUS_FAILURE_INVALID);
             }
+        } else if (mStagedSession != null) {
+            // The session was created and written while the user confirmed the install.
+            commitStagedSession();
         } else {
-            final PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
-                    PackageInstaller.SessionParams.MODE_FULL_INSTALL);
-            params.referrerUri = getIntent().getParcelableExtra(Intent.EXTRA_REFERRER);
-            params.originatingUri = getIntent().getParcelableExtra(Intent.EXTRA_ORIGINATING_URI);
-            params.originatingUid = getIntent().getIntExtra(Intent.EXTRA_ORIGINATING_UID,
-                    UID_UNKNOWN);
-
-            File file = new File(mPackageURI.getPath());
-            try {
-                PackageLite pkg = PackageParser.parsePackageLite(file, 0);
-                params.setAppPackageName(pkg.packageName);
-                params.setInstallLocation(pkg.installLocation);
-                params.setSize(
-                    PackageHelper.calculateInstalledSize(pkg, false, params.abiOverride));
-            } catch (PackageParser.PackageParserException e) {
-                Log.e(TAG, "Cannot parse package " + file + ". Assuming defaults.");
-                Log.e(TAG, "Cannot calculate installed size " + file + ". Try only apk size.");
-                params.setSize(file.length());
+            doPackageStage(pm, createSessionParams());
+        }
+    }
+
+    /**
+     * @return what the confirm screen parsed from the package, or null if it isn't cached. Doesn't
+     *         touch the disk, so a file may have changed since; see {@link #isParsedPackageCurrent}
+     */
+    private ParsedPackageCache.Entry peekParsedPackage() {
+        if (mStagedSession != null) {
+            return ParsedPackageCache.get().getStaged(mStagedSession.getSessionId());
+        } else if ("file".equals(mPackageURI.getScheme())) {
+            return ParsedPackageCache.get().peek(new File(mPackageURI.getPath()));
+        }
+        return null;
+    }
+
+    /** Called on the install thread. */
+    private boolean isParsedPackageCurrent(ParsedPackageCache.Entry entry) {
+        return mStagedSession != null
+                || ParsedPackageCache.get().get(new File(mPackageURI.getPath())) == entry;
+    }
+
+    /** Load the label and icon of the package. Called on the install thread. */
+    private PackageUtil.AppSnippet loadAppSnippet() {
+        final PackageManager pm = getPackageManager();
+        if ("package".equals(mPackageURI.getScheme())) {
+            return new PackageUtil.AppSnippet(pm.getApplicationLabel(mAppInfo),
+                    pm.getApplicationIcon(mAppInfo));
+        } else if (mStagedSession != null) {
+            try (StagedSession.ApkView apk = mStagedSession.openApk(this)) {
+                return PackageUtil.getAppSnippet(this, mAppInfo, apk.getFile());
             } catch (IOException e) {
-                Log.e(TAG, "Cannot calculate installed size " + file + ". Try only apk size.");
-                params.setSize(file.length());
+                Log.w(TAG, "Could not read the staged apk", e);
+                return new PackageUtil.AppSnippet(mAppInfo.packageName,
+                        pm.getDefaultActivityIcon());
             }
-
-            mInstallHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    doPackageStage(pm, params);
+        } else {
+            File sourceFile = new File(mPackageURI.getPath());
+            if (sourceFile.isDirectory()) {
+                // The label and icon come from the base APK of a split package.
+                try {
+                    sourceFile = new File(
+                            PackageParser.parsePackageLite(sourceFile, 0).baseCodePath);
+                } catch (PackageParser.PackageParserException e) {
+                    Log.w(TAG, "Cannot parse package " + sourceFile, e);
                 }
-            });
+            }
+            return PackageUtil.getAppSnippet(this, mAppInfo, sourceFile);
         }
     }
 
+    private PackageInstaller.SessionParams createSessionParams() {
+        final PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.referrerUri = getIntent().getParcelableExtra(Intent.EXTRA_REFERRER);
+        params.originatingUri = getIntent().getParcelableExtra(Intent.EXTRA_ORIGINATING_URI);
+        params.originatingUid = getIntent().getIntExtra(Intent.EXTRA_ORIGINATING_UID,
+                UID_UNKNOWN);
+
+        File file = new File(mPackageURI.getPath());
+        // Usually already computed while the user looked at the confirm screen.
+        ParsedPackageCache.Entry cached = ParsedPackageCache.get().get(file);
+        long installedSize = cached != null ? cached.getInstalledSize() : -1;
+        if (installedSize >= 0) {
+            params.setAppPackageName(cached.packageInfo.packageName);
+            params.setInstallLocation(cached.packageInfo.installLocation);
+            params.setSize(installedSize);
+            return params;
+        }
+
+        try {
+            PackageLite pkg = PackageParser.parsePackageLite(file, 0);
+            params.setAppPackageName(pkg.packageName);
+            params.setInstallLocation(pkg.installLocation);
+            params.setSize(
+                PackageHelper.calculateInstalledSize(pkg, false, params.abiOverride));
+        } catch (PackageParser.PackageParserException e) {
+            Log.e(TAG, "Cannot parse package " + file + ". Assuming defaults.");
+            Log.e(TAG, "Cannot calculate installed size " + file + ". Try only apk size.");
+            params.setSize(StagedSession.getSizeBytes(StagedSession.Source.forFile(file)));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot calculate installed size " + file + ". Try only apk size.");
+            params.setSize(StagedSession.getSizeBytes(StagedSession.Source.forFile(file)));
+        }
+        return params;
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         unregisterReceiver(mBroadcastReceiver);
+        mInstallHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mProgressTracker.unregister();
+            }
+        });
         mInstallThread.getLooper().quitSafely();
+        if (mOldThreadPolicy != null) {
+            StrictMode.setThreadPolicy(mOldThreadPolicy);
+        }
     }
 
     public void onClick(View v) {
@@ -410,15 +528,8 @@ public class InstallAppProgress extends Activity implements View.OnClickListener
     }
 
     private void clearCachedApkIfNeededAndFinish() {
-        // If we are installing from a content:// the apk is copied in the cache
-        // dir and passed in here. As we aren't started for a result because our
-        // caller needs to be able to forward the result, here we make sure the
-        // staging file in the cache dir is removed.
-        if ("file".equals(mPackageURI.getScheme()) && mPackageURI.getPath() != null
-                && mPackageURI.getPath().startsWith(getCacheDir().toString())) {
-            File file = new File(mPackageURI.getPath());
-            file.delete();
-        }
+        // APKs from content:// URIs are streamed straight into a session, which the system
+        // deletes once it is committed; there is no staging file to clean up here.
         finish();
     }
 }
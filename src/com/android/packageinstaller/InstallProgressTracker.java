@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.content.pm.PackageInstaller;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shows the progress of an install on the progress screen, in two phases: the copy of the APK
+ * into the session, with its throughput and time left, then the verification and dexopt done by
+ * the system once the session is committed.
+ *
+ * The copy reports every chunk it writes and the system reports session progress as it likes;
+ * both only record the latest values, and the views are updated at most once per frame.
+ */
+class InstallProgressTracker extends PackageInstaller.SessionCallback
+        implements Choreographer.FrameCallback {
+    private static final String TAG = "InstallProgress";
+
+    /** Share of the session progress the system gives to the copy, the rest is verification. */
+    private static final float COPY_PHASE_WEIGHT = 0.8f;
+
+    private static final int PROGRESS_MAX = 1000;
+
+    private final Context mContext;
+    private final PackageInstaller mInstaller;
+    private final ProgressBar mProgressBar;
+    private final TextView mDetailView;
+    private final Choreographer mChoreographer;
+    private final AtomicBoolean mFramePending = new AtomicBoolean();
+
+    private final long mStartMillis = SystemClock.elapsedRealtime();
+    private volatile int mSessionId = -1;
+    private volatile long mTotalBytes = -1;
+    private volatile long mCopiedBytes;
+    private volatile long mCopyStartMillis;
+    private volatile long mCommitMillis;
+    private volatile float mSessionProgress;
+    private boolean mStopped;
+
+    /** Must be created on the UI thread. */
+    InstallProgressTracker(Context context, ProgressBar progressBar, TextView detailView) {
+        mContext = context;
+        mInstaller = context.getPackageManager().getPackageInstaller();
+        mProgressBar = progressBar;
+        mDetailView = detailView;
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /** Start listening to session progress. Callbacks are delivered on the UI thread. */
+    void register() {
+        mInstaller.registerSessionCallback(this, new Handler(Looper.getMainLooper()));
+    }
+
+    void unregister() {
+        mInstaller.unregisterSessionCallback(this);
+    }
+
+    /**
+     * The session being installed has been created, and {@code totalBytes} are about to be
+     * copied into it, or -1 if it was written already.
+     */
+    void onSessionCreated(int sessionId, long totalBytes) {
+        mSessionId = sessionId;
+        mTotalBytes = totalBytes;
+        mCopyStartMillis = totalBytes >= 0 ? SystemClock.elapsedRealtime() : 0;
+        scheduleFrame();
+    }
+
+    void onBytesCopied(long copiedBytes) {
+        mCopiedBytes = copiedBytes;
+        scheduleFrame();
+    }
+
+    void onCommitted() {
+        mCommitMillis = SystemClock.elapsedRealtime();
+        scheduleFrame();
+    }
+
+    /** The install is done; leave the views alone from now on. Called on the UI thread. */
+    void stop() {
+        mStopped = true;
+        mChoreographer.removeFrameCallback(this);
+        mDetailView.setVisibility(View.GONE);
+    }
+
+    /** Log how long each phase took, to compare storage performance between devices. */
+    void logSummary(String packageName, int status) {
+        final long now = SystemClock.elapsedRealtime();
+        final StringBuilder summary = new StringBuilder();
+        summary.append("Install of ").append(packageName).append(" finished with status ")
+                .append(status).append(": ");
+        if (mCopyStartMillis != 0 && mCommitMillis != 0) {
+            final long copyMillis = mCommitMillis - mCopyStartMillis;
+            summary.append("copied ").append(mCopiedBytes).append(" bytes in ")
+                    .append(copyMillis).append(" ms (")
+                    .append(mCopiedBytes * 1000 / Math.max(copyMillis, 1) / 1024)
+                    .append(" KiB/s), ");
+        } else if (mCommitMillis != 0) {
+            summary.append("copied while confirming, ");
+        }
+        if (mCommitMillis != 0) {
+            summary.append("verified and optimized in ").append(now - mCommitMillis)
+                    .append(" ms, ");
+        }
+        summary.append("total ").append(now - mStartMillis).append(" ms");
+        Log.i(TAG, summary.toString());
+    }
+
+    @Override
+    public void onCreated(int sessionId) {
+    }
+
+    @Override
+    public void onBadgingChanged(int sessionId) {
+    }
+
+    @Override
+    public void onActiveChanged(int sessionId, boolean active) {
+    }
+
+    @Override
+    public void onProgressChanged(int sessionId, float progress) {
+        if (sessionId == mSessionId) {
+            mSessionProgress = progress;
+            scheduleFrame();
+        }
+    }
+
+    @Override
+    public void onFinished(int sessionId, boolean success) {
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFramePending.set(false);
+        if (mStopped || mSessionId == -1) {
+            return;
+        }
+
+        final long totalBytes = mTotalBytes;
+        final long copiedBytes = mCopiedBytes;
+        float progress = mSessionProgress;
+        String detail = null;
+        if (mCommitMillis != 0) {
+            progress = Math.max(progress, COPY_PHASE_WEIGHT);
+            detail = mContext.getString(R.string.install_progress_verifying);
+        } else if (totalBytes > 0) {
+            progress = Math.max(progress, COPY_PHASE_WEIGHT * copiedBytes / totalBytes);
+            final long elapsedMillis = SystemClock.elapsedRealtime() - mCopyStartMillis;
+            if (elapsedMillis > 0 && copiedBytes > 0) {
+                final long bytesPerSecond = copiedBytes * 1000 / elapsedMillis;
+                final long secondsLeft = (totalBytes - copiedBytes) / Math.max(bytesPerSecond, 1);
+                detail = mContext.getString(R.string.install_progress_copying,
+                        Formatter.formatShortFileSize(mContext, copiedBytes),
+                        Formatter.formatShortFileSize(mContext, totalBytes),
+                        Formatter.formatShortFileSize(mContext, bytesPerSecond),
+                        DateUtils.formatElapsedTime(secondsLeft));
+            }
+        }
+
+        mProgressBar.setIndeterminate(false);
+        mProgressBar.setMax(PROGRESS_MAX);
+        mProgressBar.setProgress((int) (progress * PROGRESS_MAX));
+        if (detail != null) {
+            mDetailView.setText(detail);
+            mDetailView.setVisibility(View.VISIBLE);
+        }
+    }
+
+    private void scheduleFrame() {
+        // Choreographer is thread safe, and calls back on the thread it was obtained on.
+        if (mFramePending.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+}
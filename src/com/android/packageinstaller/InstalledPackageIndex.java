@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The packages installed for this user, so checking whether one is installed doesn't take a call
+ * to the package manager, let alone a scan of the full list.
+ *
+ * The list is read once, then kept current by the package broadcasts: a package they name is
+ * marked stale, and read again from the package manager the next time it is looked up. Broadcasts
+ * are delivered some time after the change, so code that just installed or removed a package
+ * calls {@link #invalidate} itself.
+ */
+public class InstalledPackageIndex {
+    private static final String TAG = "InstalledPackageIndex";
+
+    private static InstalledPackageIndex sInstance;
+
+    private final Context mContext;
+    /** Package name to entry. Null until first used. */
+    private HashMap<String, Entry> mEntries;
+    /**
+     * Lower case package name to the names that match it, for lookups ignoring case. Package
+     * names are case sensitive, so there can be more than one.
+     */
+    private HashMap<String, List<String>> mNamesIgnoreCase;
+    private final HashSet<String> mStale = new HashSet<>();
+
+    /** What is known about one installed package. */
+    public static class Entry {
+        public final String packageName;
+        public final int uid;
+        public final int versionCode;
+        /** {@link ApplicationInfo#flags} */
+        public final int flags;
+
+        private Entry(PackageInfo info) {
+            packageName = info.packageName;
+            uid = info.applicationInfo != null ? info.applicationInfo.uid : -1;
+            versionCode = info.versionCode;
+            flags = info.applicationInfo != null ? info.applicationInfo.flags : 0;
+        }
+
+        /** @return false if only the data of the package is left, for this user */
+        public boolean isInstalled() {
+            return (flags & ApplicationInfo.FLAG_INSTALLED) != 0;
+        }
+    }
+
+    public static synchronized InstalledPackageIndex get(Context context) {
+        if (sInstance == null) {
+            sInstance = new InstalledPackageIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private InstalledPackageIndex(Context context) {
+        mContext = context;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data != null) {
+                    invalidate(data.getSchemeSpecificPart());
+                }
+            }
+        }, filter);
+
+        // Apps on external storage come and go in bulk.
+        IntentFilter externalFilter = new IntentFilter();
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        externalFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateAll();
+            }
+        }, externalFilter);
+    }
+
+    /** Read the list in the background, so the first lookup doesn't have to. */
+    public void warmUp() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (InstalledPackageIndex.this) {
+                    ensureLoaded();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the package named exactly {@code packageName}, even if only its data is left, or
+     *         null if there is none
+     */
+    public synchronized Entry get(String packageName) {
+        ensureLoaded();
+        if (mStale.remove(packageName)) {
+            refresh(packageName);
+        }
+        return mEntries.get(packageName);
+    }
+
+    /** @return a package whose name is {@code packageName} ignoring case, or null */
+    public synchronized Entry getIgnoreCase(String packageName) {
+        ensureLoaded();
+        // Refreshed under the names the broadcasts gave, which are the real ones.
+        for (Iterator<String> it = mStale.iterator(); it.hasNext(); ) {
+            String stale = it.next();
+            if (stale.equalsIgnoreCase(packageName)) {
+                it.remove();
+                refresh(stale);
+            }
+        }
+        List<String> names = mNamesIgnoreCase.get(toKey(packageName));
+        return names != null ? mEntries.get(names.get(0)) : null;
+    }
+
+    /** Forget what is known about {@code packageName}, it changed. */
+    public synchronized void invalidate(String packageName) {
+        if (mEntries != null) {
+            mStale.add(packageName);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mEntries = null;
+        mNamesIgnoreCase = null;
+        mStale.clear();
+    }
+
+    private void ensureLoaded() {
+        if (mEntries != null) {
+            return;
+        }
+        List<PackageInfo> installed = mContext.getPackageManager().getInstalledPackages(
+                PackageManager.GET_UNINSTALLED_PACKAGES);
+        mEntries = new HashMap<>(installed.size());
+        mNamesIgnoreCase = new HashMap<>(installed.size());
+        for (PackageInfo info : installed) {
+            put(new Entry(info));
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Indexed " + mEntries.size() + " packages");
+        }
+    }
+
+    private void refresh(String packageName) {
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName,
+                    PackageManager.GET_UNINSTALLED_PACKAGES);
+            put(new Entry(info));
+        } catch (PackageManager.NameNotFoundException e) {
+            remove(packageName);
+        }
+    }
+
+    private void put(Entry entry) {
+        if (mEntries.put(entry.packageName, entry) != null) {
+            return;
+        }
+        final String key = toKey(entry.packageName);
+        List<String> names = mNamesIgnoreCase.get(key);
+        if (names == null) {
+            names = new ArrayList<>(1);
+            mNamesIgnoreCase.put(key, names);
+        }
+        names.add(entry.packageName);
+    }
+
+    private void remove(String packageName) {
+        if (mEntries.remove(packageName) == null) {
+            return;
+        }
+        final String key = toKey(packageName);
+        List<String> names = mNamesIgnoreCase.get(key);
+        names.remove(packageName);
+        if (names.isEmpty()) {
+            mNamesIgnoreCase.remove(key);
+        }
+    }
+
+    private static String toKey(String packageName) {
+        return packageName.toLowerCase(Locale.ROOT);
+    }
+}
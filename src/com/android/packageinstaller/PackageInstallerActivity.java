@@ -20,6 +20,7 @@ import android.app.Activity;
 import android.app.ActivityManagerNative;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
@@ -32,6 +33,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.PackageParser;
 import android.content.pm.PackageUserState;
 import android.content.pm.VerificationParams;
+import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -39,6 +41,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Process;
 import android.os.UserManager;
+import android.provider.OpenableColumns;
 import android.provider.Settings;
 import android.support.v4.view.ViewPager;
 import android.util.Log;
@@ -51,13 +54,17 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TabHost;
 import android.widget.TextView;
+import com.android.packageinstaller.permission.utils.IoUtils;
 import com.android.packageinstaller.permission.utils.Utils;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipFile;
 
 /*
  * This activity is launched when a new application is installed via side loading
@@ -83,9 +90,16 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
     private Uri mOriginatingURI;
     private Uri mReferrerURI;
     private int mOriginatingUid = VerificationParams.NO_UID;
-    private File mContentUriApkStagingFile;
+    // Session a content:// APK was streamed into, until it is handed to InstallAppProgress
+    private StagedSession mStagedSession;
+    // APKs picked together, installed as the base and splits of one package
+    private ArrayList<Uri> mPackageUris;
 
-    private AsyncTask<Uri, Void, File> mStagingAsynTask;
+    private AsyncTask<Uri, Void, StagedSession> mStagingAsynTask;
+    private AsyncTask<File, Void, PersistedLookup> mLookupAsyncTask;
+    // What an earlier install of the APK left in PackageMetadataCache, looked up in the
+    // background, until processPackageUri uses it
+    private PersistedLookup mPersistedLookup;
 
     private boolean localLOGV = false;
     PackageManager mPm;
@@ -379,17 +393,20 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
             mPkgInfo.applicationInfo.packageName = pkgName;
         }
         // Check if package is already installed. display confirmation dialog if replacing pkg
-        try {
-            // This is a little convoluted because we want to get all uninstalled
-            // apps, but this may include apps with just data, and if it is just
-            // data we still want to count it as "installed".
-            mAppInfo = mPm.getApplicationInfo(pkgName,
-                    PackageManager.GET_UNINSTALLED_PACKAGES);
-            if ((mAppInfo.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
+        InstalledPackageIndex.Entry installed = InstalledPackageIndex.get(this).get(pkgName);
+        mAppInfo = null;
+        // Only fetch the full info of a package that is installed, not just left with its data;
+        // new packages skip the call altogether.
+        if (installed != null && installed.isInstalled()) {
+            try {
+                mAppInfo = mPm.getApplicationInfo(pkgName,
+                        PackageManager.GET_UNINSTALLED_PACKAGES);
+                if ((mAppInfo.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
+                    mAppInfo = null;
+                }
+            } catch (NameNotFoundException e) {
                 mAppInfo = null;
             }
-        } catch (NameNotFoundException e) {
-            mAppInfo = null;
         }
 
         startInstallConfirm();
@@ -409,6 +426,8 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         mPm = getPackageManager();
         mInstaller = mPm.getPackageInstaller();
         mUserManager = (UserManager) getSystemService(Context.USER_SERVICE);
+        // Read the installed packages while the APK is parsed.
+        InstalledPackageIndex.get(this).warmUp();
 
         final Intent intent = getIntent();
         mOriginatingUid = getOriginatingUid(intent);
@@ -431,6 +450,10 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         } else {
             mSessionId = -1;
             packageUri = intent.getData();
+            mPackageUris = getMultiplePackageUris(intent);
+            if (packageUri == null && mPackageUris != null) {
+                packageUri = mPackageUris.get(0);
+            }
             mOriginatingURI = intent.getParcelableExtra(Intent.EXTRA_ORIGINATING_URI);
             mReferrerURI = intent.getParcelableExtra(Intent.EXTRA_REFERRER);
         }
@@ -514,6 +537,11 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
             mStagingAsynTask.cancel(true);
             mStagingAsynTask = null;
         }
+        if (mLookupAsyncTask != null) {
+            mLookupAsyncTask.cancel(true);
+            mLookupAsyncTask = null;
+        }
+        abandonStagedSession();
         super.onDestroy();
     }
 
@@ -530,6 +558,47 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         final String scheme = packageUri.getScheme();
         final PackageUtil.AppSnippet as;
 
+        if (mStagedSession != null) {
+            // Looked up by the staging task, once the APK was staged.
+            final PersistedLookup lookup = mPersistedLookup;
+            mPersistedLookup = null;
+            if (lookup != null && lookup.metadata != null) {
+                mPkgInfo = lookup.metadata.packageInfo;
+                as = lookup.metadata.snippet;
+                ParsedPackageCache.get().putStaged(mStagedSession.getSessionId(), mPkgInfo, as);
+            } else {
+                // Parse the bytes staged in the session, in place.
+                try (StagedSession.ApkView apk = mStagedSession.openApk(this)) {
+                    as = parsePackageFile(apk.getFile());
+                    if (as == null) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read the staged apk", e);
+                    showDialogInner(DLG_PACKAGE_ERROR);
+                    setPmResult(PackageManager.INSTALL_FAILED_INVALID_APK);
+                    return false;
+                }
+                final ParsedPackageCache.Entry entry = ParsedPackageCache.get().putStaged(
+                        mStagedSession.getSessionId(), mPkgInfo, as);
+                if (lookup != null && lookup.digest != null) {
+                    PackageMetadataCache.get(this).put(lookup.digest, entry);
+                }
+            }
+            PackageUtil.initSnippetForNewApp(this, as, R.id.app_snippet);
+            return true;
+        }
+
+        if (mPackageUris != null || SCHEME_CONTENT.equals(scheme)
+                || (SCHEME_FILE.equals(scheme) && isApkSet(packageUri.getPath()))) {
+            // Streamed into a session first; we get back here once it is staged.
+            mStagingAsynTask = new StagingAsyncTask();
+            mStagingAsynTask.execute(mPackageUris != null
+                    ? mPackageUris.toArray(new Uri[mPackageUris.size()])
+                    : new Uri[] { packageUri });
+            return false;
+        }
+
         switch (scheme) {
             case SCHEME_PACKAGE: {
                 try {
@@ -550,28 +619,39 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
             } break;
 
             case SCHEME_FILE: {
-                File sourceFile = new File(packageUri.getPath());
-                PackageParser.Package parsed = PackageUtil.getPackageInfo(sourceFile);
-
-                // Check for parse errors
-                if (parsed == null) {
-                    Log.w(TAG, "Parse error when parsing manifest. Discontinuing installation");
-                    showDialogInner(DLG_PACKAGE_ERROR);
-                    setPmResult(PackageManager.INSTALL_FAILED_INVALID_APK);
+                final File sourceFile = new File(packageUri.getPath());
+                final ParsedPackageCache cache = ParsedPackageCache.get();
+                ParsedPackageCache.Entry cached = cache.get(sourceFile);
+                if (cached != null) {
+                    mPkgInfo = cached.packageInfo;
+                    as = cached.snippet;
+                    break;
+                }
+                // Installed before? Then what was parsed is on disk, found by content. Hashing
+                // the APK reads all of it, so that is done in the background first.
+                final PersistedLookup lookup = mPersistedLookup;
+                if (lookup == null) {
+                    mLookupAsyncTask = new LookupAsyncTask();
+                    mLookupAsyncTask.execute(sourceFile);
                     return false;
                 }
-                mPkgInfo = PackageParser.generatePackageInfo(parsed, null,
-                        PackageManager.GET_PERMISSIONS, 0, 0, null,
-                        new PackageUserState());
-                as = PackageUtil.getAppSnippet(this, mPkgInfo.applicationInfo, sourceFile);
+                mPersistedLookup = null;
+                if (lookup.metadata != null) {
+                    mPkgInfo = lookup.metadata.packageInfo;
+                    as = lookup.metadata.snippet;
+                    cache.put(sourceFile, mPkgInfo, as, lookup.metadata.installedSize);
+                } else {
+                    as = parsePackageFile(sourceFile);
+                    if (as == null) {
+                        return false;
+                    }
+                    ParsedPackageCache.Entry entry = cache.put(sourceFile, mPkgInfo, as);
+                    if (lookup.digest != null) {
+                        PackageMetadataCache.get(this).put(lookup.digest, entry);
+                    }
+                }
             } break;
 
-            case SCHEME_CONTENT: {
-                mStagingAsynTask = new StagingAsyncTask();
-                mStagingAsynTask.execute(packageUri);
-                return false;
-            }
-
             default: {
                 Log.w(TAG, "Unsupported scheme " + scheme);
                 setPmResult(PackageManager.INSTALL_FAILED_INVALID_URI);
@@ -585,6 +665,53 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         return true;
     }
 
+    /**
+     * @return the URIs of the APKs picked together in {@code intent}, or null if there is only
+     *         one
+     */
+    private static ArrayList<Uri> getMultiplePackageUris(Intent intent) {
+        final ClipData clip = intent.getClipData();
+        if (clip == null || clip.getItemCount() < 2) {
+            return null;
+        }
+        final ArrayList<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < clip.getItemCount(); i++) {
+            final Uri uri = clip.getItemAt(i).getUri();
+            if (uri != null && (SCHEME_FILE.equals(uri.getScheme())
+                    || SCHEME_CONTENT.equals(uri.getScheme()))) {
+                uris.add(uri);
+            }
+        }
+        return uris.size() > 1 ? uris : null;
+    }
+
+    private static boolean isApkSet(String name) {
+        return name != null && name.endsWith(StagedSession.APK_SET_EXTENSION);
+    }
+
+    /**
+     * Parse {@code sourceFile} into {@link #mPkgInfo}, and show an error if it can't be parsed.
+     * A directory is parsed as the base and split APKs of one package.
+     *
+     * @return the snippet of the package, or null if it could not be parsed
+     */
+    private PackageUtil.AppSnippet parsePackageFile(File sourceFile) {
+        PackageParser.Package parsed = PackageUtil.getPackageInfo(sourceFile);
+
+        // Check for parse errors
+        if (parsed == null) {
+            Log.w(TAG, "Parse error when parsing manifest. Discontinuing installation");
+            showDialogInner(DLG_PACKAGE_ERROR);
+            setPmResult(PackageManager.INSTALL_FAILED_INVALID_APK);
+            return null;
+        }
+        mPkgInfo = PackageParser.generatePackageInfo(parsed, null,
+                PackageManager.GET_PERMISSIONS, 0, 0, null,
+                new PackageUserState());
+        return PackageUtil.getAppSnippet(this, mPkgInfo.applicationInfo,
+                new File(parsed.baseCodePath));
+    }
+
     /** Get the ApplicationInfo for the calling package, if available */
     private ApplicationInfo getSourceInfo() {
         String callingPackage = getCallingPackage();
@@ -699,6 +826,12 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
                 mPkgInfo.applicationInfo);
         newIntent.setData(mPackageURI);
         newIntent.setClass(this, InstallAppProgress.class);
+        if (mStagedSession != null) {
+            // InstallAppProgress commits the session from now on.
+            newIntent.putExtra(PackageUtil.INTENT_ATTR_STAGED_SESSION_ID,
+                    mStagedSession.getSessionId());
+            mStagedSession = null;
+        }
         String installerPackageName = getIntent().getStringExtra(
                 Intent.EXTRA_INSTALLER_PACKAGE_NAME);
         if (mOriginatingURI != null) {
@@ -724,16 +857,63 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
     }
 
     private void clearCachedApkIfNeededAndFinish() {
-        if (mContentUriApkStagingFile != null) {
-            mContentUriApkStagingFile.delete();
-            mContentUriApkStagingFile = null;
-        }
+        abandonStagedSession();
         finish();
     }
 
-    private final class StagingAsyncTask extends AsyncTask<Uri, Void, File> {
+    private void abandonStagedSession() {
+        if (mStagedSession != null) {
+            mStagedSession.abandon();
+            mStagedSession = null;
+        }
+    }
+
+    /** What {@link PackageMetadataCache} holds for an APK. */
+    private static final class PersistedLookup {
+        /** Null if the APK could not be read */
+        final String digest;
+        /** Null if the APK wasn't installed before */
+        final PackageMetadataCache.Metadata metadata;
+
+        PersistedLookup(String digest, PackageMetadataCache.Metadata metadata) {
+            this.digest = digest;
+            this.metadata = metadata;
+        }
+    }
+
+    /** Hash {@code apk} and look it up. Reads the whole APK, so not on the UI thread. */
+    private PersistedLookup lookUpPersisted(File apk) {
+        final String digest = apk.isFile() ? PackageMetadataCache.getDigest(apk) : null;
+        return new PersistedLookup(digest,
+                digest != null ? PackageMetadataCache.get(this).get(digest) : null);
+    }
+
+    private final class LookupAsyncTask extends AsyncTask<File, Void, PersistedLookup> {
+        @Override
+        protected PersistedLookup doInBackground(File... params) {
+            return lookUpPersisted(params[0]);
+        }
+
+        @Override
+        protected void onPostExecute(PersistedLookup lookup) {
+            mLookupAsyncTask = null;
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+            mPersistedLookup = lookup;
+            boolean wasSetUp = processPackageUri(mPackageURI);
+            if (wasSetUp) {
+                checkIfAllowedAndInitiateInstall(false);
+            }
+        }
+    }
+
+    private final class StagingAsyncTask extends AsyncTask<Uri, Void, StagedSession> {
         private static final long SHOW_EMPTY_STATE_DELAY_MILLIS = 300;
 
+        /** Set with the result, by the background thread. */
+        private PersistedLookup mLookup;
+
         private final Runnable mEmptyStateRunnable = new Runnable() {
             @Override
             public void run() {
@@ -758,66 +938,147 @@ public class PackageInstallerActivity extends Activity implements OnCancelListen
         }
 
         @Override
-        protected File doInBackground(Uri... params) {
+        protected StagedSession doInBackground(Uri... params) {
             if (params == null || params.length <= 0) {
                 return null;
             }
-            Uri packageUri = params[0];
-            File sourceFile = null;
+            final Uri packageUri = params[0];
+            final PackageInstaller.SessionParams sessionParams =
+                    new PackageInstaller.SessionParams(
+                            PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+            sessionParams.referrerUri = mReferrerURI;
+            sessionParams.originatingUri = mOriginatingURI;
+            sessionParams.originatingUid = mOriginatingUid;
+            // Be nice and respond to a cancellation
+            final StreamTransfer.Listener listener = new StreamTransfer.Listener() {
+                @Override
+                public boolean onProgress(long bytesCopied) {
+                    return !isCancelled();
+                }
+            };
+
+            StagedSession session = null;
+            ZipFile apkSet = null;
             try {
-                sourceFile = File.createTempFile("package", ".apk", getCacheDir());
-                try (
-                    InputStream in = getContentResolver().openInputStream(packageUri);
-                    OutputStream out = (in != null) ? new FileOutputStream(
-                            sourceFile) : null;
-                ) {
-                    // Despite the comments in ContentResolver#openInputStream
-                    // the returned stream can be null.
-                    if (in == null) {
-                        return null;
+                if (params.length == 1 && SCHEME_CONTENT.equals(packageUri.getScheme())
+                        && isApkSet(getContentName(packageUri))) {
+                    try (InputStream in = StagedSession.Source.forUri(getContentResolver(),
+                            packageUri, null, -1).open()) {
+                        session = StagedSession.create(PackageInstallerActivity.this,
+                                sessionParams);
+                        session.writeApkSet(in, listener);
                     }
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = in.read(buffer)) >= 0) {
-                        // Be nice and respond to a cancellation
-                        if (isCancelled()) {
-                            return null;
+                } else {
+                    final List<StagedSession.Source> sources = new ArrayList<>();
+                    if (params.length == 1 && SCHEME_FILE.equals(packageUri.getScheme())
+                            && isApkSet(packageUri.getPath())) {
+                        apkSet = new ZipFile(packageUri.getPath());
+                        sources.addAll(StagedSession.Source.forApkSet(apkSet));
+                    } else {
+                        for (Uri uri : params) {
+                            sources.addAll(getSources(uri));
                         }
-                        out.write(buffer, 0, bytesRead);
                     }
+                    if (sources.isEmpty()) {
+                        throw new IOException("No APK to stage in " + packageUri);
+                    }
+                    final long sizeBytes = StagedSession.getSizeBytes(sources);
+                    if (sizeBytes > 0) {
+                        sessionParams.setSize(sizeBytes);
+                    }
+                    session = StagedSession.create(PackageInstallerActivity.this, sessionParams);
+                    session.write(sources, listener);
                 }
-            } catch (IOException ioe) {
-                Log.w(TAG, "Error staging apk from content URI", ioe);
-                if (sourceFile != null) {
-                    sourceFile.delete();
+            } catch (InterruptedIOException e) {
+                // Cancelled; onCancelled won't see the session.
+                if (session != null) {
+                    session.abandon();
+                }
+                return null;
+            } catch (IOException | SecurityException e) {
+                Log.w(TAG, "Error staging apk from " + packageUri, e);
+                if (session != null) {
+                    session.abandon();
+                    session = null;
+                }
+            } finally {
+                IoUtils.closeQuietly(apkSet);
+            }
+            if (session != null && !isCancelled()) {
+                try (StagedSession.ApkView apk = session.openApk(PackageInstallerActivity.this)) {
+                    mLookup = lookUpPersisted(apk.getFile());
+                } catch (IOException e) {
+                    // Parsed on the UI thread instead, which reports the error.
+                    Log.w(TAG, "Could not read the staged apk", e);
                 }
             }
-            return sourceFile;
+            return session;
+        }
+
+        private List<StagedSession.Source> getSources(Uri uri) {
+            if (SCHEME_FILE.equals(uri.getScheme())) {
+                return StagedSession.Source.forFile(new File(uri.getPath()));
+            }
+            final String name = getContentName(uri);
+            return Collections.singletonList(StagedSession.Source.forUri(getContentResolver(),
+                    uri, name != null ? name : "base.apk", getContentSize(uri)));
+        }
+
+        /** @return the display name the provider reports for {@code uri}, or null */
+        private String getContentName(Uri uri) {
+            try (Cursor cursor = getContentResolver().query(uri,
+                    new String[] { OpenableColumns.DISPLAY_NAME }, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    return cursor.getString(0);
+                }
+            } catch (RuntimeException e) {
+                // Not every provider supports the openable columns.
+            }
+            return null;
+        }
+
+        /** @return the size the provider reports for {@code uri}, or -1 if it doesn't */
+        private long getContentSize(Uri uri) {
+            try (Cursor cursor = getContentResolver().query(uri,
+                    new String[] { OpenableColumns.SIZE }, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                    return cursor.getLong(0);
+                }
+            } catch (RuntimeException e) {
+                // Not every provider supports the openable columns.
+            }
+            return -1;
         }
 
         @Override
-        protected void onPostExecute(File file) {
+        protected void onPostExecute(StagedSession session) {
             getWindow().getDecorView().removeCallbacks(mEmptyStateRunnable);
             if (isFinishing() || isDestroyed()) {
+                if (session != null) {
+                    session.abandon();
+                }
                 return;
             }
-            if (file == null) {
+            if (session == null) {
                 showDialogInner(DLG_PACKAGE_ERROR);
                 setPmResult(PackageManager.INSTALL_FAILED_INVALID_APK);
                 return;
             }
-            mContentUriApkStagingFile = file;
-            Uri fileUri = Uri.fromFile(file);
+            mStagedSession = session;
+            mPersistedLookup = mLookup;
 
-            boolean wasSetUp = processPackageUri(fileUri);
+            boolean wasSetUp = processPackageUri(mPackageURI);
             if (wasSetUp) {
                 checkIfAllowedAndInitiateInstall(false);
             }
         }
 
         @Override
-        protected void onCancelled(File file) {
+        protected void onCancelled(StagedSession session) {
             getWindow().getDecorView().removeCallbacks(mEmptyStateRunnable);
+            if (session != null) {
+                session.abandon();
+            }
         }
     };
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * What was parsed from APKs installed before, kept on disk so installing the same APK again
+ * skips parsing it and loading its resources: the {@link PackageInfo} with its permissions, the
+ * label, a downscaled icon and the installed size.
+ *
+ * Entries are named after the SHA-256 of the whole APK. A hit stands in for parsing it, so the
+ * permissions and label shown for consent must come from the very same bytes; hashing the APK is
+ * still much cheaper than parsing it and loading its resources. Entries are only used by the
+ * same build, locale and density that wrote them. Least recently used entries are evicted once the
+ * directory grows past {@link #MAX_CACHE_BYTES}.
+ */
+public class PackageMetadataCache {
+    private static final String TAG = "PackageMetadataCache";
+
+    private static final String DIR_NAME = "package_metadata";
+    private static final String ENTRY_SUFFIX = ".meta";
+
+    private static final int VERSION = 2;
+
+    private static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static PackageMetadataCache sInstance;
+
+    private final Context mContext;
+    private final File mDir;
+
+    /** A cached package. */
+    public static class Metadata {
+        public final PackageInfo packageInfo;
+        public final PackageUtil.AppSnippet snippet;
+        public final long installedSize;
+
+        private Metadata(PackageInfo packageInfo, PackageUtil.AppSnippet snippet,
+                long installedSize) {
+            this.packageInfo = packageInfo;
+            this.snippet = snippet;
+            this.installedSize = installedSize;
+        }
+    }
+
+    public static synchronized PackageMetadataCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PackageMetadataCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PackageMetadataCache(Context context) {
+        mContext = context;
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    /** @return the SHA-256 of the APK {@code file}, or null if it can't be read */
+    public static String getDigest(File file) {
+        try (FileInputStream apk = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = apk.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, "Could not digest " + file, e);
+        }
+        return null;
+    }
+
+    /** @return the metadata stored for {@code digest}, or null if there is none usable */
+    public Metadata get(String digest) {
+        final File file = new File(mDir, digest + ENTRY_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != VERSION || !getEnvironment().equals(in.readUTF())) {
+                file.delete();
+                return null;
+            }
+            final String label = in.readUTF();
+            final long installedSize = in.readLong();
+            final byte[] packageInfo = new byte[in.readInt()];
+            in.readFully(packageInfo);
+            final byte[] icon = new byte[in.readInt()];
+            in.readFully(icon);
+
+            Parcel parcel = Parcel.obtain();
+            final PackageInfo info;
+            try {
+                parcel.unmarshall(packageInfo, 0, packageInfo.length);
+                parcel.setDataPosition(0);
+                info = PackageInfo.CREATOR.createFromParcel(parcel);
+            } finally {
+                parcel.recycle();
+            }
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(icon, 0, icon.length);
+            if (bitmap == null) {
+                throw new IOException("Bad icon");
+            }
+            // Recently used entries are the last to be evicted.
+            file.setLastModified(System.currentTimeMillis());
+            return new Metadata(info, new PackageUtil.AppSnippet(label,
+                    new BitmapDrawable(mContext.getResources(), bitmap)), installedSize);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable entry " + file.getName(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store what was parsed from the APK with {@code digest}, in the background, once the
+     * installed size of {@code entry} is known.
+     */
+    public void put(final String digest, final ParsedPackageCache.Entry entry) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store(digest, entry.packageInfo, entry.snippet, entry.getInstalledSize());
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not cache " + entry.packageInfo.packageName, e);
+                }
+            }
+        });
+    }
+
+    private synchronized void store(String digest, PackageInfo packageInfo,
+            PackageUtil.AppSnippet snippet, long installedSize) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("No cache directory");
+        }
+        Parcel parcel = Parcel.obtain();
+        final byte[] info;
+        try {
+            packageInfo.writeToParcel(parcel, 0);
+            info = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        ByteArrayOutputStream icon = new ByteArrayOutputStream();
+        toBitmap(snippet.icon).compress(Bitmap.CompressFormat.PNG, 0, icon);
+
+        final File file = new File(mDir, digest + ENTRY_SUFFIX);
+        final File tmp = new File(mDir, digest + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(VERSION);
+            out.writeUTF(getEnvironment());
+            out.writeUTF(snippet.label.toString());
+            out.writeLong(installedSize);
+            out.writeInt(info.length);
+            out.write(info);
+            out.writeInt(icon.size());
+            icon.writeTo(out);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write " + file.getName());
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Cached " + packageInfo.packageName + " in " + file.length() + " bytes");
+        }
+        evict();
+    }
+
+    /** Draw {@code icon} at the launcher icon size, which is all the installer shows it at. */
+    private Bitmap toBitmap(Drawable icon) {
+        final int size = mContext.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        // The icon may be on screen; don't change its bounds under the view.
+        Drawable.ConstantState state = icon.getConstantState();
+        if (state != null) {
+            icon = state.newDrawable(mContext.getResources()).mutate();
+        }
+        icon.setBounds(0, 0, size, size);
+        icon.draw(canvas);
+        return bitmap;
+    }
+
+    /** What the label, icon and parcel format depend on. */
+    private String getEnvironment() {
+        Configuration config = mContext.getResources().getConfiguration();
+        return Build.FINGERPRINT + "|" + config.getLocales().toLanguageTags() + "|"
+                + config.densityDpi;
+    }
+
+    /** Delete the least recently used files until the directory fits in the limit. */
+    private void evict() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_CACHE_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+}
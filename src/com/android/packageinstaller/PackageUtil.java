@@ -19,7 +19,6 @@ package com.android.packageinstaller;
 
 import android.app.Activity;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageParser;
 import android.content.pm.PackageParser.PackageParserException;
@@ -32,7 +31,6 @@ import android.widget.TextView;
 import android.os.UserHandle;
 
 import java.io.File;
-import java.util.List;
 
 /**
  * This is a utility class for defining some utility methods and constants
@@ -43,6 +41,7 @@ public class PackageUtil {
     public static final String INTENT_ATTR_INSTALL_STATUS = PREFIX+"installStatus";
     public static final String INTENT_ATTR_APPLICATION_INFO=PREFIX+"applicationInfo";
     public static final String INTENT_ATTR_PERMISSIONS_LIST=PREFIX+"PermissionsList";
+    public static final String INTENT_ATTR_STAGED_SESSION_ID=PREFIX+"stagedSessionId";
     //intent attribute strings related to uninstall
     public static final String INTENT_ATTR_PACKAGE_NAME=PREFIX+"PackageName";
 
@@ -122,16 +121,7 @@ public class PackageUtil {
     }
 
     public static boolean isPackageAlreadyInstalled(Activity context, String pkgName) {
-        List<PackageInfo> installedList = context.getPackageManager().getInstalledPackages(
-                PackageManager.GET_UNINSTALLED_PACKAGES);
-        int installedListSize = installedList.size();
-        for(int i = 0; i < installedListSize; i++) {
-            PackageInfo tmp = installedList.get(i);
-            if(pkgName.equalsIgnoreCase(tmp.packageName)) {
-                return true;
-            }
-        }
-        return false;
+        return InstalledPackageIndex.get(context).getIgnoreCase(pkgName) != null;
     }
 
     static public class AppSnippet {
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageParser;
+import android.content.pm.PackageParser.PackageLite;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.android.internal.content.PackageHelper;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Packages parsed by the confirm screen, so the install progress screen can reuse their info,
+ * label and icon instead of parsing the APK and loading its resources again.
+ *
+ * APK files are keyed by path, size and modification time, so a file that changed in between is
+ * parsed again. APKs staged in a session are keyed by the session id, as their bytes can't change
+ * once written.
+ */
+public class ParsedPackageCache {
+    private static final String TAG = "ParsedPackageCache";
+
+    private static final int MAX_ENTRIES = 4;
+
+    private static ParsedPackageCache sInstance;
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /** What is known about one parsed APK. */
+    public static class Entry {
+        public final PackageInfo packageInfo;
+        public final PackageUtil.AppSnippet snippet;
+        private final FutureTask<Long> mInstalledSize;
+
+        private Entry(PackageInfo packageInfo, PackageUtil.AppSnippet snippet,
+                FutureTask<Long> installedSize) {
+            this.packageInfo = packageInfo;
+            this.snippet = snippet;
+            mInstalledSize = installedSize;
+        }
+
+        /**
+         * @return the size the package takes once installed, waiting for it to be computed if
+         *         needed, or -1 if it is not known
+         */
+        public long getInstalledSize() {
+            if (mInstalledSize == null) {
+                return -1;
+            }
+            try {
+                return mInstalledSize.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Cannot calculate installed size of " + packageInfo.packageName,
+                        e.getCause());
+                return -1;
+            }
+        }
+    }
+
+    public static synchronized ParsedPackageCache get() {
+        if (sInstance == null) {
+            sInstance = new ParsedPackageCache();
+        }
+        return sInstance;
+    }
+
+    private ParsedPackageCache() {
+    }
+
+    /** @return the entry for {@code file}, or null if it wasn't parsed or has changed since */
+    public synchronized Entry get(File file) {
+        return mEntries.get(getKey(file));
+    }
+
+    /**
+     * @return the entry most recently parsed from the path of {@code file}, without checking
+     *         that the file is unchanged, so it can be called without touching the disk
+     */
+    public synchronized Entry peek(File file) {
+        final String prefix = file.getAbsolutePath() + ":";
+        Entry latest = null;
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            // Iterated from least to most recently used.
+            if (entry.getKey().startsWith(prefix)) {
+                latest = entry.getValue();
+            }
+        }
+        return latest;
+    }
+
+    /** @return the entry for the APK staged in session {@code sessionId}, or null */
+    public synchronized Entry getStaged(int sessionId) {
+        return mEntries.get(getKey(sessionId));
+    }
+
+    /**
+     * Remember what was parsed from {@code file}. Its installed size starts being computed in the
+     * background right away, as the user is likely to install it.
+     */
+    public Entry put(File file, PackageInfo packageInfo, PackageUtil.AppSnippet snippet) {
+        return put(file, packageInfo, snippet, -1);
+    }
+
+    /**
+     * Remember what was parsed from {@code file}, when it is known from an earlier install.
+     *
+     * @param knownInstalledSize The installed size, or -1 to compute it in the background
+     */
+    public Entry put(final File file, PackageInfo packageInfo, PackageUtil.AppSnippet snippet,
+            final long knownInstalledSize) {
+        FutureTask<Long> installedSize = new FutureTask<>(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                if (knownInstalledSize >= 0) {
+                    return knownInstalledSize;
+                }
+                PackageLite pkg = PackageParser.parsePackageLite(file, 0);
+                return PackageHelper.calculateInstalledSize(pkg, false, null);
+            }
+        });
+        Entry entry = new Entry(packageInfo, snippet, installedSize);
+        synchronized (this) {
+            mEntries.put(getKey(file), entry);
+        }
+        if (knownInstalledSize >= 0) {
+            installedSize.run();
+        } else {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(installedSize);
+        }
+        return entry;
+    }
+
+    /** Remember what was parsed from the APK staged in session {@code sessionId}. */
+    public synchronized Entry putStaged(int sessionId, PackageInfo packageInfo,
+            PackageUtil.AppSnippet snippet) {
+        Entry entry = new Entry(packageInfo, snippet, null);
+        mEntries.put(getKey(sessionId), entry);
+        return entry;
+    }
+
+    private static String getKey(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private static String getKey(int sessionId) {
+        return "session:" + sessionId;
+    }
+}
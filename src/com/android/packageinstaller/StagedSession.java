@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.IntentSender;
+import android.content.pm.PackageInstaller;
+import android.content.pm.PackageParser;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.android.packageinstaller.permission.utils.IoUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * An install session APKs are streamed into as soon as they are received, so they are written to
+ * disk once instead of being copied to a staging file first and into a session later.
+ *
+ * A package split in several APKs is written as one {@link Source} per APK, concurrently, each
+ * under its own name in the session. The package can still be parsed before it is committed, from
+ * the staged bytes themselves: {@link #openApk} gives a path to the base APK that stays valid
+ * until the {@link ApkView} is closed.
+ */
+public class StagedSession {
+    private static final String TAG = "StagedSession";
+
+    /** Extension of a zip holding the base and split APKs of one package. */
+    public static final String APK_SET_EXTENSION = ".apks";
+
+    private static final String APK_EXTENSION = ".apk";
+
+    private static final int MAX_CONCURRENT_WRITES = 4;
+
+    private final PackageInstaller mInstaller;
+    private final int mSessionId;
+
+    /** A readable path to a staged APK. */
+    public static class ApkView implements Closeable {
+        private final File mFile;
+        private final ParcelFileDescriptor mFd;
+        private final StagingArea mStaging;
+
+        private ApkView(File file, ParcelFileDescriptor fd, StagingArea staging) {
+            mFile = file;
+            mFd = fd;
+            mStaging = staging;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        @Override
+        public void close() {
+            IoUtils.closeQuietly(mFd);
+            if (mStaging != null) {
+                mStaging.release(mFile);
+            }
+        }
+    }
+
+    /** One APK to write into a session. */
+    public static abstract class Source {
+        private final String mName;
+        private final long mSizeBytes;
+
+        /**
+         * @param name File name of the APK, only used to name it in the session
+         * @param sizeBytes Size of the APK, or -1 if unknown
+         */
+        protected Source(String name, long sizeBytes) {
+            mName = name;
+            mSizeBytes = sizeBytes;
+        }
+
+        public long getSizeBytes() {
+            return mSizeBytes;
+        }
+
+        public abstract InputStream open() throws IOException;
+
+        /** @return the APK {@code file}, or every APK in it if it is a directory */
+        public static List<Source> forFile(File file) {
+            if (!file.isDirectory()) {
+                return Collections.singletonList(forSingleFile(file));
+            }
+            List<Source> sources = new ArrayList<>();
+            File[] files = file.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File apk : files) {
+                    if (apk.isFile() && apk.getName().endsWith(APK_EXTENSION)) {
+                        sources.add(forSingleFile(apk));
+                    }
+                }
+            }
+            return sources;
+        }
+
+        public static Source forUri(final ContentResolver resolver, final Uri uri, String name,
+                long sizeBytes) {
+            return new Source(name, sizeBytes) {
+                @Override
+                public InputStream open() throws IOException {
+                    InputStream in = resolver.openInputStream(uri);
+                    // Despite the comments in ContentResolver#openInputStream
+                    // the returned stream can be null.
+                    if (in == null) {
+                        throw new FileNotFoundException("No content at " + uri);
+                    }
+                    return in;
+                }
+            };
+        }
+
+        /** @return every APK in the {@link #APK_SET_EXTENSION} zip {@code zip} */
+        public static List<Source> forApkSet(final ZipFile zip) {
+            List<Source> sources = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && entry.getName().endsWith(APK_EXTENSION)) {
+                    sources.add(new Source(entry.getName(), entry.getSize()) {
+                        @Override
+                        public InputStream open() throws IOException {
+                            return zip.getInputStream(entry);
+                        }
+                    });
+                }
+            }
+            return sources;
+        }
+
+        private static Source forSingleFile(final File file) {
+            return new Source(file.getName(), file.length()) {
+                @Override
+                public InputStream open() throws IOException {
+                    return new FileInputStream(file);
+                }
+            };
+        }
+    }
+
+    /** @return the total size of {@code sources}, or -1 if any of them doesn't know its size */
+    public static long getSizeBytes(List<Source> sources) {
+        long total = 0;
+        for (Source source : sources) {
+            if (source.getSizeBytes() < 0) {
+                return -1;
+            }
+            total += source.getSizeBytes();
+        }
+        return total;
+    }
+
+    /** Create a new session for {@code params}. */
+    public static StagedSession create(Context context, PackageInstaller.SessionParams params)
+            throws IOException {
+        PackageInstaller installer = context.getPackageManager().getPackageInstaller();
+        return new StagedSession(installer, installer.createSession(params));
+    }
+
+    /** Wrap the existing session {@code sessionId}, which must be owned by this app. */
+    public static StagedSession open(Context context, int sessionId) {
+        return new StagedSession(context.getPackageManager().getPackageInstaller(), sessionId);
+    }
+
+    private StagedSession(PackageInstaller installer, int sessionId) {
+        mInstaller = installer;
+        mSessionId = sessionId;
+    }
+
+    public int getSessionId() {
+        return mSessionId;
+    }
+
+    /**
+     * Write every source to the session, concurrently if there are several, and report their
+     * progress to the session. If one of them fails the others are cancelled.
+     *
+     * @param listener Called with the number of bytes copied across all sources, never
+     *        concurrently. Can be null.
+     */
+    public void write(List<Source> sources, StreamTransfer.Listener listener) throws IOException {
+        final PackageInstaller.Session session = openSession();
+        try {
+            final Progress progress = new Progress(session, getSizeBytes(sources), listener);
+            if (sources.size() == 1) {
+                writeSource(session, 0, sources.get(0), progress);
+                return;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(sources.size(), MAX_CONCURRENT_WRITES));
+            try {
+                List<Future<Void>> writes = new ArrayList<>();
+                for (int i = 0; i < sources.size(); i++) {
+                    final int index = i;
+                    final Source source = sources.get(i);
+                    writes.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            try {
+                                writeSource(session, index, source, progress);
+                            } catch (IOException e) {
+                                // Stop the other writes, they would be abandoned anyway.
+                                progress.fail(e);
+                                throw e;
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> write : writes) {
+                    waitFor(write, progress);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            IoUtils.closeQuietly(session);
+        }
+    }
+
+    /**
+     * Write every APK of the {@link #APK_SET_EXTENSION} zip read from {@code in}. A stream can
+     * only be read in order, so the APKs are written one after the other.
+     *
+     * @param listener Can be null
+     */
+    public void writeApkSet(InputStream in, StreamTransfer.Listener listener) throws IOException {
+        final PackageInstaller.Session session = openSession();
+        try {
+            final Progress progress = new Progress(session, -1, listener);
+            ZipInputStream zip = new ZipInputStream(in);
+            int index = 0;
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!entry.isDirectory() && entry.getName().endsWith(APK_EXTENSION)) {
+                    OutputStream out = session.openWrite(getSessionName(index++, entry.getName()),
+                            0, entry.getSize());
+                    try {
+                        StreamTransfer.copy(zip, out, progress.forSource());
+                        session.fsync(out);
+                    } finally {
+                        IoUtils.closeQuietly(out);
+                    }
+                }
+            }
+            if (index == 0) {
+                throw new IOException("No APK in the APK set");
+            }
+        } finally {
+            IoUtils.closeQuietly(session);
+        }
+    }
+
+    /**
+     * Open the staged base APK for reading. The bytes are read in place through the file
+     * descriptor the session hands out; if that path can't be opened again, they are copied to
+     * the {@link StagingArea} instead.
+     */
+    public ApkView openApk(Context context) throws IOException {
+        PackageInstaller.Session session = openSession();
+        try {
+            String[] names = session.getNames();
+            if (names.length == 0) {
+                throw new IOException("Nothing staged in session " + mSessionId);
+            }
+            if (names.length == 1) {
+                return openApk(context, session, names[0]);
+            }
+            for (String name : names) {
+                ApkView apk = openApk(context, session, name);
+                try {
+                    if (PackageParser.parseApkLite(apk.getFile(), 0).splitName == null) {
+                        return apk;
+                    }
+                } catch (PackageParser.PackageParserException e) {
+                    Log.w(TAG, "Could not parse " + name + " in session " + mSessionId, e);
+                }
+                apk.close();
+            }
+            throw new IOException("No base APK in session " + mSessionId);
+        } finally {
+            IoUtils.closeQuietly(session);
+        }
+    }
+
+    public void commit(IntentSender statusReceiver) throws IOException {
+        PackageInstaller.Session session = openSession();
+        try {
+            session.commit(statusReceiver);
+        } finally {
+            IoUtils.closeQuietly(session);
+        }
+    }
+
+    /** Abandon the session and delete what was staged in it. */
+    public void abandon() {
+        try {
+            mInstaller.abandonSession(mSessionId);
+        } catch (SecurityException e) {
+            // Already committed or abandoned.
+            Log.w(TAG, "Could not abandon session " + mSessionId + ": " + e.getMessage());
+        }
+    }
+
+    private ApkView openApk(Context context, PackageInstaller.Session session, String name)
+            throws IOException {
+        InputStream in = null;
+        try {
+            in = session.openRead(name);
+            if (in instanceof FileInputStream) {
+                ParcelFileDescriptor fd = ParcelFileDescriptor.dup(((FileInputStream) in).getFD());
+                File file = new File("/proc/self/fd/" + fd.getFd());
+                if (file.canRead()) {
+                    return new ApkView(file, fd, null);
+                }
+                fd.close();
+            }
+
+            Log.w(TAG, "Can't read session " + mSessionId + " in place, copying it");
+            StagingArea staging = StagingArea.get(context);
+            File file = staging.reserve("session", -1);
+            try (OutputStream out = new FileOutputStream(file)) {
+                StreamTransfer.copy(in, out, null);
+            } catch (IOException e) {
+                staging.release(file);
+                throw e;
+            }
+            staging.commit(file);
+            return new ApkView(file, null, staging);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeSource(PackageInstaller.Session session, int index, Source source,
+            Progress progress) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = source.open();
+            out = session.openWrite(getSessionName(index, source.mName), 0,
+                    source.getSizeBytes());
+            StreamTransfer.copy(in, out, progress.forSource());
+            session.fsync(out);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    private static void waitFor(Future<Void> write, Progress progress) throws IOException {
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.fail(new InterruptedIOException("Interrupted while writing the session"));
+            throw progress.getFailure();
+        } catch (ExecutionException e) {
+            // The write that failed first has the cause, the others were cancelled by it.
+            IOException failure = progress.getFailure();
+            throw failure != null ? failure : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Names must be unique in a session and valid file names; the system renames the APKs once
+     * they are parsed, so they don't need to mean anything.
+     */
+    private static String getSessionName(int index, String name) {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        return index + "_" + fileName.replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+
+    /** Progress summed across the sources being written. */
+    private static class Progress {
+        private final PackageInstaller.Session mSession;
+        private final long mTotalBytes;
+        private final StreamTransfer.Listener mListener;
+
+        private long mCopiedBytes;
+        private volatile boolean mCancelled;
+        private IOException mFailure;
+
+        Progress(PackageInstaller.Session session, long totalBytes,
+                StreamTransfer.Listener listener) {
+            mSession = session;
+            mTotalBytes = totalBytes;
+            mListener = listener;
+        }
+
+        /** Cancel the writes still running, because of {@code failure}. */
+        synchronized void fail(IOException failure) {
+            mCancelled = true;
+            if (mFailure == null) {
+                mFailure = failure;
+            }
+        }
+
+        synchronized IOException getFailure() {
+            return mFailure;
+        }
+
+        StreamTransfer.Listener forSource() {
+            return new StreamTransfer.Listener() {
+                private long mReported;
+
+                @Override
+                public boolean onProgress(long bytesCopied) {
+                    long delta = bytesCopied - mReported;
+                    mReported = bytesCopied;
+                    return add(delta);
+                }
+            };
+        }
+
+        private synchronized boolean add(long delta) {
+            if (mCancelled) {
+                return false;
+            }
+            mCopiedBytes += delta;
+            if (mTotalBytes > 0) {
+                mSession.addProgress((float) delta / (float) mTotalBytes);
+            }
+            if (mListener != null && !mListener.onProgress(mCopiedBytes)) {
+                mCancelled = true;
+            }
+            return !mCancelled;
+        }
+    }
+}
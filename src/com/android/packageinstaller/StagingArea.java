@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The one place APKs are staged on disk before they are parsed or installed, so they can be
+ * accounted for and cleaned up.
+ *
+ * <ul>
+ * <li>{@link #reserve} checks that the expected size fits on the disk before a copy starts, and
+ * keeps it reserved until the copy is {@link #commit committed}.</li>
+ * <li>The staged files are kept under {@link #QUOTA_BYTES}: when a reservation doesn't fit, the
+ * least recently used files that nobody in this process holds are evicted. A file is held from
+ * {@link #reserve} until {@link #release}, so only files left by an earlier process, e.g. for a
+ * screen that is being restored, can go away under their owner, who must cope with it.</li>
+ * <li>Files left behind by a process that crashed or was killed are deleted the first time the
+ * staging area is used, once they are older than {@link #ORPHAN_AGE_MS}.</li>
+ * </ul>
+ */
+public class StagingArea {
+    private static final String TAG = "StagingArea";
+
+    private static final String DIR_NAME = "staging";
+
+    private static final long QUOTA_BYTES = 256 * 1024 * 1024;
+
+    /** Younger files may still belong to a screen that is being restored. */
+    private static final long ORPHAN_AGE_MS = 60 * 60 * 1000;
+
+    private static StagingArea sInstance;
+
+    private final File mDir;
+    /** Files being written, to the number of bytes reserved for them. */
+    private final HashMap<File, Long> mReservations = new HashMap<>();
+    /** Files fully written and still in use, they are not evicted until released. */
+    private final HashSet<File> mCommitted = new HashSet<>();
+
+    private long mFilesStaged;
+    private long mBytesWritten;
+    private long mFilesEvicted;
+    private long mBytesEvicted;
+    private long mOrphansDeleted;
+    private long mPeakBytes;
+
+    public static synchronized StagingArea get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StagingArea(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StagingArea(Context context) {
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+        mDir.mkdirs();
+        try {
+            // The wear installer hands staged APKs to other processes.
+            Os.chmod(mDir.getAbsolutePath(), 0771);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not set permissions on " + mDir, e);
+        }
+        deleteOrphans(mDir);
+        // Where APKs were staged before there was a staging area.
+        deleteOrphans(new File(context.getFilesDir(), "tmp"));
+        deleteOrphans(context.getCacheDir());
+        if (mOrphansDeleted > 0) {
+            Log.i(TAG, "Deleted " + mOrphansDeleted + " orphaned staging files");
+        }
+    }
+
+    /**
+     * Create a new staging file, and reserve {@code expectedBytes} for it.
+     *
+     * @param prefix Start of the file name, e.g. the package name
+     * @param expectedBytes How large the file will be, or -1 if unknown
+     * @throws IOException if the file can't be created, or there is not enough space for it
+     */
+    public synchronized File reserve(String prefix, long expectedBytes) throws IOException {
+        final long bytes = Math.max(expectedBytes, 0);
+        long used = getUsedBytes();
+        if (used + bytes > QUOTA_BYTES) {
+            used -= evict(used + bytes - QUOTA_BYTES);
+        }
+        if (used + bytes > QUOTA_BYTES) {
+            throw new IOException("Staging quota exceeded, " + used + " bytes in use, "
+                    + bytes + " needed");
+        }
+        long usable = mDir.getUsableSpace() - getOutstandingBytes();
+        if (bytes > usable) {
+            throw new IOException("Not enough space to stage " + bytes + " bytes, " + usable
+                    + " available");
+        }
+        File file = File.createTempFile(prefix.length() < 3 ? prefix + "___" : prefix, ".apk",
+                mDir);
+        mReservations.put(file, bytes);
+        mFilesStaged++;
+        mPeakBytes = Math.max(mPeakBytes, used + bytes);
+        return file;
+    }
+
+    /**
+     * Signal that {@code file} has been fully written. Its reservation is dropped, it is kept
+     * until {@link #release released}.
+     */
+    public synchronized void commit(File file) {
+        if (mReservations.remove(file) != null) {
+            mCommitted.add(file);
+            mBytesWritten += file.length();
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Staged " + file.length() + " bytes in " + file.getName());
+            }
+        }
+    }
+
+    /** Delete {@code file}, whether it was committed or not. */
+    public synchronized void release(File file) {
+        mReservations.remove(file);
+        mCommitted.remove(file);
+        file.delete();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Staging area: " + getUsedBytes() + " bytes used, quota " + QUOTA_BYTES);
+        pw.println("  files=" + mFilesStaged + " written=" + mBytesWritten + " peak="
+                + mPeakBytes + " evicted=" + mFilesEvicted + "/" + mBytesEvicted
+                + " orphans=" + mOrphansDeleted + " writing=" + mReservations.size()
+                + " held=" + mCommitted.size());
+    }
+
+    /** Bytes on disk, counting files being written at their reserved size if larger. */
+    private long getUsedBytes() {
+        long used = 0;
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Long reserved = mReservations.get(file);
+                used += reserved != null ? Math.max(reserved, file.length()) : file.length();
+            }
+        }
+        return used;
+    }
+
+    /** Reserved bytes not written yet. */
+    private long getOutstandingBytes() {
+        long outstanding = 0;
+        for (HashMap.Entry<File, Long> entry : mReservations.entrySet()) {
+            outstanding += Math.max(0, entry.getValue() - entry.getKey().length());
+        }
+        return outstanding;
+    }
+
+    /** Delete least recently used files that are not held, up to {@code bytes}. */
+    private long evict(long bytes) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        ArrayList<File> candidates = new ArrayList<>();
+        for (File file : files) {
+            if (!mReservations.containsKey(file) && !mCommitted.contains(file)) {
+                candidates.add(file);
+            }
+        }
+        Collections.sort(candidates, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        long evicted = 0;
+        for (int i = 0; i < candidates.size() && evicted < bytes; i++) {
+            File file = candidates.get(i);
+            long length = file.length();
+            if (file.delete()) {
+                Log.w(TAG, "Evicted " + file.getName() + " to stay under the staging quota");
+                evicted += length;
+                mFilesEvicted++;
+                mBytesEvicted += length;
+            }
+        }
+        return evicted;
+    }
+
+    private void deleteOrphans(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long cutoff = System.currentTimeMillis() - ORPHAN_AGE_MS;
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".apk") && file.lastModified() < cutoff
+                    && file.delete()) {
+                mOrphansDeleted++;
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.packageinstaller;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Copies APKs between streams. When both ends are regular files the copy is done by the kernel
+ * through {@link FileChannel#transferTo}; otherwise it goes through a large buffer taken from a
+ * small shared pool, so concurrent copies don't each allocate their own.
+ */
+public class StreamTransfer {
+    private static final String TAG = "StreamTransfer";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    /** Channel transfers are split in chunks of this size so progress can be reported. */
+    private static final long CHANNEL_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>();
+
+    /** Receives progress while a transfer is running. */
+    public interface Listener {
+        /**
+         * @param bytesCopied Total number of bytes copied so far
+         * @return false to cancel the transfer, which then throws {@link InterruptedIOException}
+         */
+        boolean onProgress(long bytesCopied);
+    }
+
+    /** Outcome of a completed transfer. */
+    public static final class Stats {
+        public final long bytes;
+        public final long elapsedMillis;
+        public final boolean zeroCopy;
+
+        private Stats(long bytes, long elapsedMillis, boolean zeroCopy) {
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+            this.zeroCopy = zeroCopy;
+        }
+
+        public long getBytesPerSecond() {
+            return elapsedMillis > 0 ? bytes * 1000 / elapsedMillis : bytes * 1000;
+        }
+
+        @Override
+        public String toString() {
+            return bytes + " bytes in " + elapsedMillis + " ms (" + getBytesPerSecond() / 1024
+                    + " KiB/s" + (zeroCopy ? ", zero-copy" : "") + ")";
+        }
+    }
+
+    private StreamTransfer() {
+    }
+
+    /**
+     * Copy {@code in} to {@code out} until the end of {@code in}. Neither stream is closed, and
+     * {@code out} is flushed.
+     *
+     * @param listener Can be null
+     */
+    public static Stats copy(InputStream in, OutputStream out, Listener listener)
+            throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        long bytes = 0;
+        boolean zeroCopy = false;
+        if (in instanceof FileInputStream && out instanceof FileOutputStream
+                && isRegularFile(((FileInputStream) in).getFD())
+                && isRegularFile(((FileOutputStream) out).getFD())) {
+            bytes = transferChannels(((FileInputStream) in).getChannel(),
+                    ((FileOutputStream) out).getChannel(), listener);
+            zeroCopy = true;
+        }
+        // Also picks up whatever the channel transfer left over, if it stopped early.
+        bytes += copyBuffered(in, out, listener, bytes);
+        out.flush();
+
+        Stats stats = new Stats(bytes, SystemClock.elapsedRealtime() - start, zeroCopy);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Copied " + stats);
+        }
+        return stats;
+    }
+
+    private static long transferChannels(FileChannel src, FileChannel dst, Listener listener)
+            throws IOException {
+        final long start = src.position();
+        final long size = src.size();
+        long pos = start;
+        while (pos < size) {
+            long n = src.transferTo(pos, Math.min(CHANNEL_CHUNK_SIZE, size - pos), dst);
+            if (n <= 0) {
+                break;
+            }
+            pos += n;
+            notifyProgress(listener, pos - start);
+        }
+        src.position(pos);
+        return pos - start;
+    }
+
+    private static long copyBuffered(InputStream in, OutputStream out, Listener listener,
+            long alreadyCopied) throws IOException {
+        final byte[] buffer = obtainBuffer();
+        long bytes = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                bytes += n;
+                notifyProgress(listener, alreadyCopied + bytes);
+            }
+        } finally {
+            recycleBuffer(buffer);
+        }
+        return bytes;
+    }
+
+    private static void notifyProgress(Listener listener, long bytesCopied)
+            throws InterruptedIOException {
+        if (listener != null && !listener.onProgress(bytesCopied)) {
+            throw new InterruptedIOException("Transfer cancelled after " + bytesCopied
+                    + " bytes");
+        }
+    }
+
+    private static boolean isRegularFile(FileDescriptor fd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            byte[] buffer = sBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buffer);
+            }
+        }
+    }
+}
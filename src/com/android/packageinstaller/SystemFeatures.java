@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.pm.FeatureInfo;
+import android.content.res.Configuration;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Snapshot of the system features, so checking one is a set lookup instead of a binder call to
+ * the package manager. Features only change across boots, which restart the process; the snapshot
+ * is still taken again after a configuration change, to be safe.
+ */
+public class SystemFeatures {
+    private static SystemFeatures sInstance;
+
+    private final Context mContext;
+    private volatile Set<String> mFeatures;
+
+    public static synchronized SystemFeatures get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SystemFeatures(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SystemFeatures(Context context) {
+        mContext = context;
+        mContext.registerComponentCallbacks(new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                mFeatures = null;
+            }
+
+            @Override
+            public void onLowMemory() {
+            }
+        });
+    }
+
+    /** Take the snapshot now, if there is none, so the first feature check doesn't have to. */
+    public void load() {
+        getFeatures();
+    }
+
+    public boolean hasSystemFeature(String name) {
+        return getFeatures().contains(name);
+    }
+
+    private Set<String> getFeatures() {
+        Set<String> features = mFeatures;
+        if (features == null) {
+            features = new HashSet<>();
+            FeatureInfo[] infos = mContext.getPackageManager().getSystemAvailableFeatures();
+            if (infos != null) {
+                for (FeatureInfo info : infos) {
+                    // OpenGL ES versions are listed without a name.
+                    if (info.name != null) {
+                        features.add(info.name);
+                    }
+                }
+            }
+            features = Collections.unmodifiableSet(features);
+            mFeatures = features;
+        }
+        return features;
+    }
+}
@@ -110,6 +110,8 @@ public class UninstallAppProgress extends Activity implements OnClickListener {
 
                     mResultCode = msg.arg1;
                     final String packageName = (String) msg.obj;
+                    InstalledPackageIndex.get(UninstallAppProgress.this)
+                            .invalidate(mAppInfo.packageName);
 
                     if (mCallback != null) {
                         final IPackageDeleteObserver2 observer = IPackageDeleteObserver2.Stub
@@ -195,6 +195,14 @@ public class UninstallerActivity extends Activity {
         mDialogInfo.allUsers = intent.getBooleanExtra(Intent.EXTRA_UNINSTALL_ALL_USERS, false);
         mDialogInfo.callback = intent.getIBinderExtra(PackageInstaller.EXTRA_CALLBACK);
 
+        // A package that isn't there for this user needs no binder call to tell.
+        if (mDialogInfo.user.equals(android.os.Process.myUserHandle())
+                && InstalledPackageIndex.get(this).get(mPackageName) == null) {
+            Log.e(TAG, "Invalid packageName: " + mPackageName);
+            showAppNotFound();
+            return;
+        }
+
         try {
             mDialogInfo.appInfo = pm.getApplicationInfo(mPackageName,
                     PackageManager.GET_UNINSTALLED_PACKAGES, mDialogInfo.user.getIdentifier());
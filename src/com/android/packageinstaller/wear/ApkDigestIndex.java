@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * SHA-256 digests of the APKs installed through {@link WearPackageInstallerService}, keyed by
+ * package name. Used to recognize a companion resending the APK that is already installed.
+ *
+ * Each entry is tied to the {@link PackageInfo#lastUpdateTime} of the install it describes, and
+ * is dropped as soon as the package is updated by anyone else or removed (see
+ * {@link PackageChangeReceiver}).
+ */
+public class ApkDigestIndex {
+    private static final String TAG = "ApkDigestIndex";
+
+    private static final String PREFS_NAME = "wear_apk_digests";
+
+    private static ApkDigestIndex sInstance;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public static final class Entry {
+        public final long lastUpdateTime;
+        public final byte[] digest;
+        /** How long committing this APK took, i.e. what is saved by not installing it again. */
+        public final long installMillis;
+
+        private Entry(long lastUpdateTime, byte[] digest, long installMillis) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.digest = digest;
+            this.installMillis = installMillis;
+        }
+
+        private static Entry parse(String value) {
+            String[] parts = value != null ? value.split(":") : null;
+            if (parts == null || parts.length != 3) {
+                return null;
+            }
+            try {
+                return new Entry(Long.parseLong(parts[0]), fromHex(parts[1]),
+                        Long.parseLong(parts[2]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        private String flatten() {
+            return lastUpdateTime + ":" + toHex(digest) + ":" + installMillis;
+        }
+    }
+
+    public static synchronized ApkDigestIndex get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApkDigestIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ApkDigestIndex(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the entry of {@code installed} if {@code digest} is the digest of the APK currently
+     *         installed, null otherwise.
+     */
+    public Entry findIdentical(PackageInfo installed, byte[] digest) {
+        if (installed == null || digest == null) {
+            return null;
+        }
+        Entry entry = Entry.parse(mPrefs.getString(installed.packageName, null));
+        if (entry == null || entry.lastUpdateTime != installed.lastUpdateTime
+                || !Arrays.equals(entry.digest, digest)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /** Record the digest of an APK that was just installed. */
+    public void put(String packageName, byte[] digest, long installMillis) {
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            Entry entry = new Entry(info.lastUpdateTime, digest, installMillis);
+            mPrefs.edit().putString(packageName, entry.flatten()).apply();
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, packageName + " is not installed, not recording its digest");
+        }
+    }
+
+    /**
+     * Drop the entry of {@code packageName} unless it still describes the installed package.
+     * Called for every package broadcast.
+     */
+    public void onPackageChanged(String packageName) {
+        Entry entry = Entry.parse(mPrefs.getString(packageName, null));
+        if (entry == null) {
+            return;
+        }
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            if (info.lastUpdateTime == entry.lastUpdateTime) {
+                return;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            // Removed
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Dropping digest of " + packageName);
+        }
+        mPrefs.edit().remove(packageName).apply();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
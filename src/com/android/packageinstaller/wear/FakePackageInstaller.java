@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.pm.PackageInstaller;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.packageinstaller.StreamTransfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * In-process stand-in for {@link PackageInstallerImpl} that never touches the package manager.
+ * "Sessions" are plain files in a local directory, and commit callbacks are posted to the main
+ * thread after a configurable latency, failing at a configurable rate. Used to measure the wear
+ * pipeline on its own, see {@link WearInstallLoadTest}.
+ */
+public class FakePackageInstaller implements PackageInstallerBackend {
+    private static final String TAG = "FakePackageInstaller";
+
+    private final File mSessionDir;
+    private final long mCommitLatencyMs;
+    private final float mFailureRate;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+
+    /**
+     * @param sessionDir Where staged APKs are written, created if needed
+     * @param commitLatencyMs Mean delay between commit and its callback; the actual delay is
+     *                        spread uniformly between half and one and a half times this
+     * @param failureRate Fraction of commits, from 0 to 1, that report a failure
+     */
+    public FakePackageInstaller(File sessionDir, long commitLatencyMs, float failureRate) {
+        mSessionDir = sessionDir;
+        mCommitLatencyMs = commitLatencyMs;
+        mFailureRate = failureRate;
+        mSessionDir.mkdirs();
+    }
+
+    @Override
+    public void install(final String packageName, InputStream apkStream, long apkSize,
+            StagedPackageVerifier verifier, final InstallListener callback,
+            final InstallStats.Trace trace) {
+        final File staged = new File(mSessionDir, packageName + ".apk");
+        trace.begin(InstallStats.STAGE_SESSION_WRITE);
+        try {
+            FileOutputStream out = new FileOutputStream(staged);
+            try {
+                StreamTransfer.copy(apkStream, out, null);
+                trace.end(InstallStats.STAGE_SESSION_WRITE);
+                trace.begin(InstallStats.STAGE_FSYNC);
+                out.getFD().sync();
+                trace.end(InstallStats.STAGE_FSYNC);
+            } finally {
+                out.close();
+            }
+        } catch (ManifestSniffingInputStream.ManifestRejectedException e) {
+            staged.delete();
+            callback.installFailed(InstallerConstants.ERROR_INSTALL_PRECHECK_FAILED,
+                    "[" + packageName + "]" + e.getMessage());
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not stage " + packageName, e);
+            staged.delete();
+            callback.installFailed(InstallerConstants.ERROR_INSTALL_APK_COPY_FAILURE,
+                    "[" + packageName + "]" + e);
+            return;
+        } finally {
+            InstallTask.safeClose(apkStream);
+        }
+
+        if (verifier != null) {
+            int status = verifier.verifyStagedPackage(new StagedPackage() {
+                @Override
+                public InputStream openRead() throws IOException {
+                    return new FileInputStream(staged);
+                }
+            });
+            if (status != InstallerConstants.STATUS_SUCCESS) {
+                staged.delete();
+                if (status == InstallerConstants.STATUS_ALREADY_INSTALLED) {
+                    callback.installSucceeded();
+                } else {
+                    callback.installFailed(status, "[" + packageName + "]precheck failed");
+                }
+                return;
+            }
+        }
+
+        final boolean fail;
+        final long latency;
+        synchronized (mRandom) {
+            fail = mRandom.nextFloat() < mFailureRate;
+            latency = mCommitLatencyMs / 2 + (long) (mRandom.nextFloat() * mCommitLatencyMs);
+        }
+        callback.installBeginning();
+        trace.begin(InstallStats.STAGE_COMMIT);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                trace.end(InstallStats.STAGE_COMMIT);
+                staged.delete();
+                if (fail) {
+                    callback.installFailed(InstallerConstants.ERROR_PACKAGEINSTALLER_BASE
+                            - PackageInstaller.STATUS_FAILURE, null);
+                } else {
+                    callback.installSucceeded();
+                }
+            }
+        }, latency);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Collects the outcome of every package of a batch install request, and reports them together
+ * through the request's {@link ResultReceiver} once the last package has finished.
+ *
+ * The result code is the number of packages that were not installed. The result data holds, in
+ * request order, the package names, their status ({@link InstallerConstants#STATUS_SUCCESS} or
+ * an error code), how long each one took from start to install callback, and the install time
+ * saved for packages that were skipped because the identical APK was already installed.
+ */
+public class InstallBatch {
+    private static final String TAG = "InstallBatch";
+
+    public static final String KEY_PACKAGE_NAMES =
+            "com.google.android.clockwork.EXTRA_BATCH_PACKAGE_NAMES";
+    public static final String KEY_STATUS =
+            "com.google.android.clockwork.EXTRA_BATCH_STATUS";
+    public static final String KEY_DURATIONS_MS =
+            "com.google.android.clockwork.EXTRA_BATCH_DURATIONS_MS";
+    public static final String KEY_TOTAL_DURATION_MS =
+            "com.google.android.clockwork.EXTRA_BATCH_TOTAL_DURATION_MS";
+    public static final String KEY_SAVED_MS =
+            "com.google.android.clockwork.EXTRA_BATCH_SAVED_MS";
+
+    private final ResultReceiver mReceiver;
+    private final String[] mPackageNames;
+    private final int[] mStatus;
+    private final long[] mStartTimes;
+    private final long[] mDurations;
+    private final long[] mSaved;
+    private final long mBatchStartTime = SystemClock.elapsedRealtime();
+    private int mRemaining;
+
+    public InstallBatch(ResultReceiver receiver, String[] packageNames) {
+        mReceiver = receiver;
+        mPackageNames = packageNames;
+        mStatus = new int[packageNames.length];
+        mStartTimes = new long[packageNames.length];
+        mDurations = new long[packageNames.length];
+        mSaved = new long[packageNames.length];
+        mRemaining = packageNames.length;
+    }
+
+    public synchronized void onItemStarted(int index) {
+        mStartTimes[index] = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @param savedMillis Install time saved by skipping an identical APK, or 0
+     * @return true if this was the last package of the batch, in which case the result has
+     *         been sent.
+     */
+    public synchronized boolean onItemFinished(int index, int status, long savedMillis) {
+        mStatus[index] = status;
+        mSaved[index] = savedMillis;
+        if (mStartTimes[index] != 0) {
+            mDurations[index] = SystemClock.elapsedRealtime() - mStartTimes[index];
+        }
+        if (--mRemaining > 0) {
+            return false;
+        }
+
+        int failed = 0;
+        for (int s : mStatus) {
+            if (s != InstallerConstants.STATUS_SUCCESS) {
+                failed++;
+            }
+        }
+        long saved = 0;
+        for (long s : mSaved) {
+            saved += s;
+        }
+        final long total = SystemClock.elapsedRealtime() - mBatchStartTime;
+        Log.i(TAG, "Batch of " + mPackageNames.length + " packages finished in " + total
+                + " ms, " + failed + " not installed, " + saved + " ms saved on identical APKs");
+        if (mReceiver != null) {
+            Bundle result = new Bundle();
+            result.putStringArray(KEY_PACKAGE_NAMES, mPackageNames);
+            result.putIntArray(KEY_STATUS, mStatus);
+            result.putLongArray(KEY_DURATIONS_MS, mDurations);
+            result.putLong(KEY_TOTAL_DURATION_MS, total);
+            result.putLongArray(KEY_SAVED_MS, mSaved);
+            mReceiver.send(failed, result);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Keeps how long each stage of the last {@link #HISTORY_SIZE} wear installs took, for
+ * {@code dumpsys activity service WearPackageInstallerService}.
+ */
+public class InstallStats {
+    public static final int STAGE_OPEN_FD = 0;
+    /** Time spent in the decompressor's read(), while streaming into the session. */
+    public static final int STAGE_DECOMPRESS = 1;
+    public static final int STAGE_MANIFEST = 2;
+    public static final int STAGE_PERMISSIONS = 3;
+    public static final int STAGE_FEATURES = 4;
+    /** Streaming into the session, not counting {@link #STAGE_DECOMPRESS}. */
+    public static final int STAGE_SESSION_WRITE = 5;
+    public static final int STAGE_FSYNC = 6;
+    /** From {@code Session.commit()} to the commit callback. */
+    public static final int STAGE_COMMIT = 7;
+    private static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {
+        "open_fd", "decompress", "manifest", "permissions", "features", "session_write", "fsync",
+        "commit",
+    };
+
+    private static final int HISTORY_SIZE = 64;
+
+    private static final InstallStats sInstance = new InstallStats();
+
+    private final Trace[] mHistory = new Trace[HISTORY_SIZE];
+    private int mNext;
+    private int mTotal;
+
+    public static InstallStats get() {
+        return sInstance;
+    }
+
+    public Trace newTrace(String packageName) {
+        return new Trace(packageName);
+    }
+
+    private synchronized void add(Trace trace) {
+        mHistory[mNext] = trace;
+        mNext = (mNext + 1) % HISTORY_SIZE;
+        mTotal++;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        final int count = Math.min(mTotal, HISTORY_SIZE);
+        pw.println("Wear installs: " + mTotal + " total, last " + count + " kept");
+        if (count == 0) {
+            return;
+        }
+
+        pw.println("  Stage percentiles (ms):");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            long[] values = new long[count];
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                long nanos = mHistory[i].mStageNanos[stage];
+                if (nanos >= 0) {
+                    values[n++] = nanos / 1000000;
+                }
+            }
+            if (n == 0) {
+                continue;
+            }
+            Arrays.sort(values, 0, n);
+            pw.println(String.format("    %-14s n=%-3d p50=%-6d p90=%-6d p99=%-6d max=%d",
+                    STAGE_NAMES[stage], n, percentile(values, n, 50), percentile(values, n, 90),
+                    percentile(values, n, 99), values[n - 1]));
+        }
+
+        pw.println("  Recent installs (newest first):");
+        for (int i = 1; i <= count; i++) {
+            Trace trace = mHistory[(mNext - i + HISTORY_SIZE) % HISTORY_SIZE];
+            pw.print("    " + trace.mPackageName + " status=" + trace.mStatus
+                    + " in=" + trace.mBytesIn + " out=" + trace.mBytesOut);
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                if (trace.mStageNanos[stage] >= 0) {
+                    pw.print(" " + STAGE_NAMES[stage] + "="
+                            + trace.mStageNanos[stage] / 1000000);
+                }
+            }
+            pw.println();
+        }
+    }
+
+    private static long percentile(long[] sorted, int n, int percentile) {
+        return sorted[Math.min(n - 1, (n * percentile + 99) / 100 - 1)];
+    }
+
+    /**
+     * Timings of one install. Stages are recorded from whichever thread runs them, one after
+     * another; the trace is added to the history once the install has finished.
+     */
+    public final class Trace {
+        private final String mPackageName;
+        private final long[] mStageNanos = new long[STAGE_COUNT];
+        private final long[] mStageStart = new long[STAGE_COUNT];
+        private long mBytesIn = -1;
+        private long mBytesOut = -1;
+        private int mStatus;
+        private boolean mFinished;
+
+        private Trace(String packageName) {
+            mPackageName = packageName;
+            Arrays.fill(mStageNanos, -1);
+        }
+
+        public synchronized void begin(int stage) {
+            mStageStart[stage] = SystemClock.elapsedRealtimeNanos();
+        }
+
+        public synchronized void end(int stage) {
+            if (mStageStart[stage] != 0) {
+                add(stage, SystemClock.elapsedRealtimeNanos() - mStageStart[stage]);
+                mStageStart[stage] = 0;
+            }
+        }
+
+        public synchronized void add(int stage, long nanos) {
+            mStageNanos[stage] = Math.max(mStageNanos[stage], 0) + nanos;
+        }
+
+        /** @param bytes Size of the compressed asset, or -1 if unknown */
+        public synchronized void setBytesIn(long bytes) {
+            mBytesIn = bytes;
+        }
+
+        public synchronized void setBytesOut(long bytes) {
+            mBytesOut = bytes;
+        }
+
+        /** Add this trace to the history. Only the first call has an effect. */
+        public void finish(int status) {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                mStatus = status;
+                if (mStageNanos[STAGE_SESSION_WRITE] >= 0 && mStageNanos[STAGE_DECOMPRESS] >= 0) {
+                    mStageNanos[STAGE_SESSION_WRITE] = Math.max(0,
+                            mStageNanos[STAGE_SESSION_WRITE] - mStageNanos[STAGE_DECOMPRESS]);
+                }
+            }
+            InstallStats.this.add(this);
+        }
+    }
+
+    /** Accounts the time spent reading from the wrapped stream to a stage of a trace. */
+    public static class TimedInputStream extends FilterInputStream {
+        private final Trace mTrace;
+        private final int mStage;
+        private long mNanos;
+        private long mBytes;
+
+        public TimedInputStream(InputStream in, Trace trace, int stage) {
+            super(in);
+            mTrace = trace;
+            mStage = stage;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            int b = super.read();
+            mNanos += SystemClock.elapsedRealtimeNanos() - start;
+            if (b >= 0) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            int n = super.read(b, off, len);
+            mNanos += SystemClock.elapsedRealtimeNanos() - start;
+            if (n > 0) {
+                mBytes += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mTrace.add(mStage, mNanos);
+            mTrace.setBytesOut(mBytes);
+            mNanos = 0;
+            super.close();
+        }
+    }
+}
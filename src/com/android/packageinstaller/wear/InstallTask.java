@@ -20,14 +20,18 @@ import android.content.Context;
 import android.content.IntentSender;
 import android.content.pm.PackageInstaller;
 import android.os.Looper;
-import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.packageinstaller.StreamTransfer;
+
 import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.CRC32;
 
 /**
  * Task that installs an APK. This must not be called on the main thread.
@@ -36,57 +40,99 @@ import java.io.OutputStream;
 public class InstallTask {
     private static final String TAG = "InstallTask";
 
-    private static final int DEFAULT_BUFFER_SIZE = 8192;
-
     private final Context mContext;
     private String mPackageName;
-    private ParcelFileDescriptor mParcelFileDescriptor;
-    private PackageInstallerImpl.InstallListener mCallback;
+    private InputStream mApkStream;
+    private long mApkSize;
+    private PackageInstallerBackend.StagedPackageVerifier mVerifier;
+    private PackageInstallerBackend.InstallListener mCallback;
     private PackageInstaller.Session mSession;
-    private IntentSender mCommitCallback;
+    private SessionCheckpoint mCheckpoint;
+    private InstallStats.Trace mTrace;
+    private CommitCallbackProvider mCommitCallbackProvider;
+    private OutputStream mSessionStream;
+    private long mStreamLength;
+    private boolean mStaleData;
+    private boolean mAlreadyInstalled;
+    private boolean mCommitted;
 
     private Exception mException = null;
     private int mErrorCode = 0;
     private String mErrorDesc = null;
 
-    public InstallTask(Context context, String packageName,
-            ParcelFileDescriptor parcelFileDescriptor,
-            PackageInstallerImpl.InstallListener callback, PackageInstaller.Session session,
-            IntentSender commitCallback) {
+    public InstallTask(Context context, String packageName, InputStream apkStream, long apkSize,
+            PackageInstallerBackend.StagedPackageVerifier verifier,
+            PackageInstallerBackend.InstallListener callback, PackageInstaller.Session session,
+            SessionCheckpoint checkpoint, InstallStats.Trace trace,
+            CommitCallbackProvider commitCallbackProvider) {
         mContext = context;
         mPackageName = packageName;
-        mParcelFileDescriptor = parcelFileDescriptor;
+        mApkStream = apkStream;
+        mApkSize = apkSize;
+        mVerifier = verifier;
         mCallback = callback;
         mSession = session;
-        mCommitCallback = commitCallback;
+        mCheckpoint = checkpoint;
+        mTrace = trace;
+        mCommitCallbackProvider = commitCallbackProvider;
+    }
+
+    /** Supplies where the commit result goes, only once the session is about to be committed. */
+    public interface CommitCallbackProvider {
+        IntentSender getCommitCallback();
     }
 
     public boolean isError() {
         return mErrorCode != InstallerConstants.STATUS_SUCCESS || !TextUtils.isEmpty(mErrorDesc);
     }
 
+    /**
+     * @return true if the session was not committed because the verifier found the same APK
+     *         already installed.
+     */
+    public boolean isAlreadyInstalled() {
+        return mAlreadyInstalled;
+    }
+
+    /** @return true if the session was committed, and its result will be reported back. */
+    public boolean isCommitted() {
+        return mCommitted;
+    }
+
+    /**
+     * @return true if the install failed while streaming, and what was written so far has been
+     *         checkpointed. The session should then be kept so a retry can resume it.
+     */
+    public boolean canResume() {
+        return mErrorCode == InstallerConstants.ERROR_INSTALL_APK_COPY_FAILURE && !mStaleData
+                && mCheckpoint.getChunkCount() > 0;
+    }
+
     public void execute() {
         if (Looper.myLooper() == Looper.getMainLooper()) {
             throw new IllegalStateException("This method cannot be called from the UI thread.");
         }
 
-        OutputStream sessionStream = null;
         try {
-            sessionStream = mSession.openWrite(mPackageName, 0, -1);
-
-            // 2b: Stream the asset to the installer. Note:
-            // Note: writeToOutputStreamFromAsset() always safely closes the input stream
-            writeToOutputStreamFromAsset(sessionStream);
-            mSession.fsync(sessionStream);
+            // 2b: Stream the asset to the installer, skipping what an earlier attempt wrote.
+            // Note: writeToSessionFromAsset() always safely closes the input stream
+            mTrace.begin(InstallStats.STAGE_SESSION_WRITE);
+            boolean written = writeToSessionFromAsset();
+            mTrace.end(InstallStats.STAGE_SESSION_WRITE);
+            if (written) {
+                mTrace.begin(InstallStats.STAGE_FSYNC);
+                mSession.fsync(mSessionStream);
+                mTrace.end(InstallStats.STAGE_FSYNC);
+            }
         } catch (Exception e) {
             mException = e;
             mErrorCode = InstallerConstants.ERROR_INSTALL_COPY_STREAM;
             mErrorDesc = "Could not write to stream";
         } finally {
-            if (sessionStream != null) {
+            if (mSessionStream != null) {
                 // 2c: close output stream
                 try {
-                    sessionStream.close();
+                    mSessionStream.close();
                 } catch (Exception e) {
                     // Ignore otherwise
                     if (mException == null) {
@@ -98,55 +144,122 @@ public class InstallTask {
             }
         }
 
+        // 2d: Give the caller a chance to check the staged package before it is committed.
+        if (mErrorCode == InstallerConstants.STATUS_SUCCESS && checkStagedLength()
+                && mVerifier != null) {
+            int status = mVerifier.verifyStagedPackage(
+                    new PackageInstallerBackend.StagedPackage() {
+                        @Override
+                        public InputStream openRead() throws IOException {
+                            return mSession.openRead(mPackageName);
+                        }
+                    });
+            if (status == InstallerConstants.STATUS_ALREADY_INSTALLED) {
+                mAlreadyInstalled = true;
+            } else if (status != InstallerConstants.STATUS_SUCCESS) {
+                mErrorCode = status;
+                mErrorDesc = "Staged package failed preinstall checks";
+            }
+        }
+
         if (mErrorCode != InstallerConstants.STATUS_SUCCESS) {
             // An error occurred, we're done
             Log.e(TAG, "Exception while installing " + mPackageName + ": " + mErrorCode + ", "
                     + mErrorDesc + ", " + mException);
+            if (canResume()) {
+                Log.i(TAG, "Keeping " + mCheckpoint.getChunkCount() + " MB of " + mPackageName
+                        + " for the next attempt");
+            }
             mSession.close();
             mCallback.installFailed(mErrorCode, "[" + mPackageName + "]" + mErrorDesc);
+        } else if (mAlreadyInstalled) {
+            // Nothing to commit, the session is abandoned by the caller.
+            Log.i(TAG, "Identical " + mPackageName + " is already installed");
+            mSession.close();
+            mCallback.installSucceeded();
         } else {
             // 3. Commit the session (this actually installs it.)  Session map
             // will be cleaned up in the callback.
             mCallback.installBeginning();
-            mSession.commit(mCommitCallback);
+            mTrace.begin(InstallStats.STAGE_COMMIT);
+            mSession.commit(mCommitCallbackProvider.getCommitCallback());
+            mCommitted = true;
             mSession.close();
         }
     }
 
     /**
-     * {@code PackageInstaller} works with streams. Get the {@code FileDescriptor}
-     * corresponding to the {@code Asset} and then write the contents into an
-     * {@code OutputStream} that is passed in.
+     * {@code PackageInstaller} works with streams. Read the (already decompressed) APK
+     * stream of the {@code Asset} and write the contents into the session.
      * <br>
-     * The {@code FileDescriptor} is closed but the {@code OutputStream} is not closed.
+     * If an earlier attempt was interrupted, the start of the stream is checked against its
+     * checkpoint first, and only the part that was not durably written yet is copied.
+     * <br>
+     * The APK stream is closed but the session stream is not closed.
      */
-    private boolean writeToOutputStreamFromAsset(OutputStream outputStream) {
-        if (outputStream == null) {
-            mErrorCode = InstallerConstants.ERROR_INSTALL_COPY_STREAM_EXCEPTION;
-            mErrorDesc = "Got a null OutputStream.";
-            return false;
-        }
-
-        if (mParcelFileDescriptor == null || mParcelFileDescriptor.getFileDescriptor() == null)  {
+    private boolean writeToSessionFromAsset() {
+        if (mApkStream == null)  {
             mErrorCode = InstallerConstants.ERROR_COULD_NOT_GET_FD;
             mErrorDesc = "Could not get FD";
             return false;
         }
 
-        InputStream inputStream = null;
+        InputStream inputStream = mApkStream;
         try {
-            byte[] inputBuf = new byte[DEFAULT_BUFFER_SIZE];
-            int bytesRead;
-            inputStream = new ParcelFileDescriptor.AutoCloseInputStream(mParcelFileDescriptor);
-
-            while ((bytesRead = inputStream.read(inputBuf)) > -1) {
-                if (bytesRead > 0) {
-                    outputStream.write(inputBuf, 0, bytesRead);
+            int index = 0;
+            byte[] chunk = null;
+            int length = 0;
+            if (mCheckpoint.getChunkCount() > 0) {
+                chunk = new byte[SessionCheckpoint.CHUNK_SIZE];
+                while (index < mCheckpoint.getChunkCount()) {
+                    length = readChunk(inputStream, chunk);
+                    if (!mCheckpoint.matches(index, chunk, length)) {
+                        break;
+                    }
+                    index++;
+                    length = 0;
                 }
+                mCheckpoint.truncate(index);
+            }
+
+            final long offset = (long) index * SessionCheckpoint.CHUNK_SIZE;
+            if (offset > 0) {
+                Log.i(TAG, "Resuming " + mPackageName + " at offset " + offset);
+            }
+            try {
+                // With the full length known, the platform frees and allocates the space up
+                // front instead of failing midway.
+                mSessionStream = mSession.openWrite(mPackageName, offset,
+                        mApkSize > 0 ? mApkSize : -1);
+            } catch (IOException e) {
+                mException = e;
+                mErrorCode = InstallerConstants.ERROR_INSTALL_OPEN_STREAM;
+                mErrorDesc = "Could not open session stream";
+                return false;
+            }
+            if (mSessionStream == null) {
+                mErrorCode = InstallerConstants.ERROR_INSTALL_COPY_STREAM_EXCEPTION;
+                mErrorDesc = "Got a null OutputStream.";
+                return false;
             }
 
-            outputStream.flush();
+            CheckpointOutputStream out = new CheckpointOutputStream(mSessionStream, index);
+            if (length > 0) {
+                // The chunk that did not match the checkpoint.
+                out.write(chunk, 0, length);
+            }
+            StreamTransfer.Stats stats = StreamTransfer.copy(inputStream, out, null);
+            mStreamLength = out.getPosition();
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Streamed " + mPackageName + " from offset " + offset + ": " + stats);
+            }
+        } catch (ManifestSniffingInputStream.ManifestRejectedException e) {
+            // Not resumable (see canResume()), the same APK would be rejected again.
+            mErrorCode = InstallerConstants.ERROR_INSTALL_PRECHECK_FAILED;
+            mErrorDesc = "Rejected from its manifest: " + e.getMessage();
+            return false;
         } catch (IOException e) {
+            mException = e;
             mErrorCode = InstallerConstants.ERROR_INSTALL_APK_COPY_FAILURE;
             mErrorDesc = "Reading from Asset FD or writing to temp file failed: " + e;
             return false;
@@ -157,6 +270,88 @@ public class InstallTask {
         return true;
     }
 
+    /**
+     * Writing into a session never truncates it, so an earlier attempt with a longer APK would
+     * leave stale bytes at the end of this one.
+     */
+    private boolean checkStagedLength() {
+        InputStream in = null;
+        try {
+            in = mSession.openRead(mPackageName);
+            if (in instanceof FileInputStream
+                    && ((FileInputStream) in).getChannel().size() != mStreamLength) {
+                mStaleData = true;
+                mErrorCode = InstallerConstants.ERROR_INSTALL_APK_COPY_FAILURE;
+                mErrorDesc = "Session holds data from an earlier, different APK";
+                return false;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not check staged length of " + mPackageName + ": " + e);
+        } finally {
+            safeClose(in);
+        }
+        return true;
+    }
+
+    /** Read up to a full chunk, fewer bytes only at the end of the stream. */
+    private static int readChunk(InputStream in, byte[] chunk) throws IOException {
+        int length = 0;
+        while (length < chunk.length) {
+            int n = in.read(chunk, length, chunk.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * Computes the checksum of each chunk as it is written, and periodically fsyncs the session
+     * and saves the checkpoint.
+     */
+    private class CheckpointOutputStream extends FilterOutputStream {
+        private final CRC32 mCrc = new CRC32();
+        private int mChunk;
+        private int mChunkPos;
+
+        CheckpointOutputStream(OutputStream out, int chunk) {
+            super(out);
+            mChunk = chunk;
+        }
+
+        long getPosition() {
+            return (long) mChunk * SessionCheckpoint.CHUNK_SIZE + mChunkPos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, SessionCheckpoint.CHUNK_SIZE - mChunkPos);
+                out.write(b, off, n);
+                mCrc.update(b, off, n);
+                mChunkPos += n;
+                off += n;
+                len -= n;
+                if (mChunkPos == SessionCheckpoint.CHUNK_SIZE) {
+                    mCheckpoint.append((int) mCrc.getValue());
+                    mCrc.reset();
+                    mChunkPos = 0;
+                    if (++mChunk % SessionCheckpoint.CHUNKS_PER_SYNC == 0) {
+                        out.flush();
+                        mSession.fsync(out);
+                        mCheckpoint.save();
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Quietly close a closeable resource (e.g. a stream or file). The input may already
      * be closed and it may even be null.
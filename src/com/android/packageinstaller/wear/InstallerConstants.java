@@ -23,6 +23,11 @@ package com.android.packageinstaller.wear;
 public class InstallerConstants {
     /** Request succeeded */
     public static final int STATUS_SUCCESS = 0;
+    /**
+     * Request succeeded without installing anything, because the exact same APK is already
+     * installed. Only returned by {@link PackageInstallerBackend.StagedPackageVerifier}.
+     */
+    public static final int STATUS_ALREADY_INSTALLED = 1;
 
     /**
      * The new PackageInstaller also returns a small set of less granular error codes, which
@@ -56,4 +61,17 @@ public class InstallerConstants {
     /** The install did not complete because of an error while closing the PackageInstaller
      * output stream */
     public final static int ERROR_INSTALL_CLOSE_STREAM = -621;
+    /** The install did not complete because the staged package failed the preinstall checks
+     * (package name, version, permissions or features) */
+    public final static int ERROR_INSTALL_PRECHECK_FAILED = -622;
+    /** The install did not start because there is not enough free storage for the APK */
+    public final static int ERROR_INSTALL_INSUFFICIENT_STORAGE = -623;
+    /** The install did not complete because a newer request for the same package replaced it */
+    public final static int ERROR_INSTALL_SUPERSEDED = -624;
+    /** The install did not complete because the commit never reported its result */
+    public final static int ERROR_INSTALL_COMMIT_TIMEOUT = -625;
+    /** The install did not start because its request lacks the package name or asset URI */
+    public final static int ERROR_INSTALL_INVALID_REQUEST = -626;
+    /** The install did not start because the installer its request was meant for is gone */
+    public final static int ERROR_INSTALL_NO_INSTALLER = -627;
 }
\ No newline at end of file
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Pass-through stream that watches the bytes of an APK go by and pulls AndroidManifest.xml out
+ * of them, so that the manifest can be checked without a second pass over the APK.
+ *
+ * The APK is walked entry by entry using the ZIP local file headers. Sniffing gives up (and
+ * {@link #getManifest()} returns null) if it reaches the central directory first, or if an
+ * entry before the manifest does not record its size in the local header.
+ *
+ * A {@link Listener} can look at the manifest as soon as it is decoded, and reject the package.
+ * Reads then fail with {@link ManifestRejectedException}, so an install that is bound to fail
+ * stops right there instead of after the whole APK has been decompressed and copied.
+ *
+ * The platform finds entries through the central directory at the end of the APK, not the local
+ * headers, so a decoy local entry could show the sniffer another manifest than the one that gets
+ * installed. Only rejecting the package is safe to do on the sniffed manifest alone; before it is
+ * trusted to let the package through, {@link #matchesCentralDirectory} must confirm it.
+ */
+public class ManifestSniffingInputStream extends FilterInputStream {
+    private static final String TAG = "ManifestSniffer";
+
+    private static final String MANIFEST_NAME = "AndroidManifest.xml";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    /** Size of the end of central directory record, without its comment. */
+    private static final int EOCD_SIZE = 22;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int MAX_CENTRAL_DIRECTORY_SIZE = 64 * 1024 * 1024;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    /** Refuse to buffer manifests larger than this; real ones are a few tens of KB. */
+    private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_NAME_EXTRA = 1;
+    private static final int STATE_SKIP = 2;
+    private static final int STATE_MANIFEST = 3;
+    private static final int STATE_DONE = 4;
+
+    private int mState = STATE_HEADER;
+    private byte[] mFieldBuf = new byte[LOCAL_HEADER_SIZE];
+    private int mFieldLen;
+    private int mFieldNeeded = LOCAL_HEADER_SIZE;
+    private long mRemaining;
+    /** Bytes of the APK seen so far, and where the local header being read started. */
+    private long mPosition;
+    private long mHeaderOffset;
+
+    private int mFlags;
+    private int mMethod;
+    private long mCompressedSize;
+    private int mNameLength;
+
+    private long mManifestOffset;
+    private long mManifestCrc;
+    private long mManifestSize;
+    private ByteArrayOutputStream mManifestBytes;
+    private Inflater mInflater;
+    private byte[] mInflateBuf;
+
+    private final Listener mListener;
+    private WearPackageManifest mManifest;
+    private long mParseNanos;
+    private String mRejectReason;
+
+    /** Gets to check the manifest as soon as it has been read from the stream. */
+    public interface Listener {
+        /**
+         * Called on the reading thread, from within the read that completed the manifest.
+         *
+         * @param sniffer The stream the manifest was sniffed from, to check it against the
+         *                central directory once the whole APK has been read
+         * @return null to keep going, or why the package is rejected
+         */
+        String onManifestSniffed(ManifestSniffingInputStream sniffer,
+                WearPackageManifest manifest, long parseNanos);
+    }
+
+    /** Thrown by reads once the package has been rejected by the {@link Listener}. */
+    public static class ManifestRejectedException extends IOException {
+        public ManifestRejectedException(String reason) {
+            super(reason);
+        }
+    }
+
+    public ManifestSniffingInputStream(InputStream in) {
+        this(in, null);
+    }
+
+    /** @param listener Can be null */
+    public ManifestSniffingInputStream(InputStream in, Listener listener) {
+        super(in);
+        mListener = listener;
+    }
+
+    /**
+     * @return the decoded manifest, or null if it was not (or not yet) found in the stream.
+     */
+    public WearPackageManifest getManifest() {
+        return mManifest;
+    }
+
+    /** @return time spent decoding the manifest, once it was found in the stream. */
+    public long getParseNanos() {
+        return mParseNanos;
+    }
+
+    /**
+     * Check the sniffed manifest against the central directory of the APK it was streamed from:
+     * the directory must have one manifest entry, pointing at the local entry that was sniffed,
+     * with the same CRC and size.
+     *
+     * @param apk The APK, as it was read through this stream
+     * @return true if the platform will install the manifest returned by {@link #getManifest}
+     */
+    public boolean matchesCentralDirectory(FileChannel apk) throws IOException {
+        if (mManifest == null) {
+            return false;
+        }
+        final long length = apk.size();
+        final int tailSize = (int) Math.min(length, MAX_COMMENT_SIZE + EOCD_SIZE);
+        final ByteBuffer tail = read(apk, length - tailSize, tailSize);
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) != EOCD_SIGNATURE) {
+                continue;
+            }
+            final long cdSize = tail.getInt(i + 12) & 0xffffffffL;
+            final long cdOffset = tail.getInt(i + 16) & 0xffffffffL;
+            if (cdOffset + cdSize > length - tailSize + i) {
+                // A signature that happens to be in the comment.
+                continue;
+            }
+            if (cdSize > MAX_CENTRAL_DIRECTORY_SIZE) {
+                return false;
+            }
+            return matchesEntries(read(apk, cdOffset, (int) cdSize));
+        }
+        return false;
+    }
+
+    private boolean matchesEntries(ByteBuffer cd) {
+        int manifestEntries = 0;
+        boolean matched = false;
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_SIZE <= cd.limit()
+                && cd.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            final int nameLength = cd.getShort(pos + 28) & 0xffff;
+            final int extraLength = cd.getShort(pos + 30) & 0xffff;
+            final int commentLength = cd.getShort(pos + 32) & 0xffff;
+            if (pos + CENTRAL_HEADER_SIZE + nameLength > cd.limit()) {
+                return false;
+            }
+            final String name = new String(cd.array(), pos + CENTRAL_HEADER_SIZE, nameLength,
+                    StandardCharsets.UTF_8);
+            if (MANIFEST_NAME.equals(name)) {
+                manifestEntries++;
+                matched = (cd.getInt(pos + 42) & 0xffffffffL) == mManifestOffset
+                        && (cd.getInt(pos + 16) & 0xffffffffL) == mManifestCrc
+                        && (cd.getInt(pos + 24) & 0xffffffffL) == mManifestSize;
+            }
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return manifestEntries == 1 && matched;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size)
+            throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("APK is shorter than its central directory says");
+            }
+        }
+        return buf;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkRejected();
+        int b = super.read();
+        if (b >= 0 && mState != STATE_DONE) {
+            observe(new byte[] { (byte) b }, 0, 1);
+            checkRejected();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkRejected();
+        int n = super.read(b, off, len);
+        if (n > 0 && mState != STATE_DONE) {
+            observe(b, off, n);
+            checkRejected();
+        }
+        return n;
+    }
+
+    private void checkRejected() throws ManifestRejectedException {
+        if (mRejectReason != null) {
+            throw new ManifestRejectedException(mRejectReason);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes still have to be seen by the sniffer.
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+
+    private void observe(byte[] b, int off, int len) {
+        while (len > 0 && mState != STATE_DONE) {
+            int consumed;
+            switch (mState) {
+                case STATE_HEADER:
+                case STATE_NAME_EXTRA:
+                    if (mState == STATE_HEADER && mFieldLen == 0) {
+                        mHeaderOffset = mPosition;
+                    }
+                    consumed = Math.min(len, mFieldNeeded - mFieldLen);
+                    System.arraycopy(b, off, mFieldBuf, mFieldLen, consumed);
+                    mFieldLen += consumed;
+                    if (mFieldLen == mFieldNeeded) {
+                        if (mState == STATE_HEADER) {
+                            onLocalHeader();
+                        } else {
+                            onNameAndExtra();
+                        }
+                    }
+                    break;
+                case STATE_SKIP:
+                    consumed = (int) Math.min(len, mRemaining);
+                    mRemaining -= consumed;
+                    if (mRemaining == 0) {
+                        expectHeader();
+                    }
+                    break;
+                case STATE_MANIFEST:
+                    consumed = onManifestData(b, off, len);
+                    break;
+                default:
+                    return;
+            }
+            off += consumed;
+            len -= consumed;
+            mPosition += consumed;
+        }
+    }
+
+    private void onLocalHeader() {
+        if (le32(0) != LOCAL_HEADER_SIGNATURE) {
+            // Central directory (or APK signing block): there are no more entries to look at.
+            giveUp("reached end of entries");
+            return;
+        }
+        mFlags = le16(6);
+        mMethod = le16(8);
+        mCompressedSize = le32(18) & 0xffffffffL;
+        mNameLength = le16(26);
+        int extraLength = le16(28);
+        mState = STATE_NAME_EXTRA;
+        mFieldLen = 0;
+        mFieldNeeded = mNameLength + extraLength;
+        if (mFieldBuf.length < mFieldNeeded) {
+            mFieldBuf = new byte[mFieldNeeded];
+        }
+        if (mFieldNeeded == 0) {
+            onNameAndExtra();
+        }
+    }
+
+    private void onNameAndExtra() {
+        String name = new String(mFieldBuf, 0, mNameLength, StandardCharsets.UTF_8);
+        boolean hasDataDescriptor = (mFlags & FLAG_DATA_DESCRIPTOR) != 0;
+        if (MANIFEST_NAME.equals(name)) {
+            if (mMethod == METHOD_DEFLATED) {
+                mInflater = new Inflater(true /* nowrap */);
+                mInflateBuf = new byte[8192];
+            } else if (mMethod != METHOD_STORED || hasDataDescriptor) {
+                giveUp("unsupported manifest entry method " + mMethod);
+                return;
+            }
+            if (!hasDataDescriptor && mCompressedSize > MAX_MANIFEST_SIZE) {
+                giveUp("manifest too large");
+                return;
+            }
+            mRemaining = hasDataDescriptor ? Long.MAX_VALUE : mCompressedSize;
+            mManifestOffset = mHeaderOffset;
+            mManifestBytes = new ByteArrayOutputStream();
+            mState = STATE_MANIFEST;
+            if (mRemaining == 0) {
+                onManifestComplete();
+            }
+        } else if (hasDataDescriptor || mCompressedSize == 0xffffffffL) {
+            giveUp("can't find the end of " + name);
+        } else {
+            mRemaining = mCompressedSize;
+            mState = STATE_SKIP;
+            if (mRemaining == 0) {
+                expectHeader();
+            }
+        }
+    }
+
+    private int onManifestData(byte[] b, int off, int len) {
+        int consumed = (int) Math.min(len, mRemaining);
+        mRemaining -= consumed;
+        if (mInflater == null) {
+            mManifestBytes.write(b, off, consumed);
+        } else {
+            mInflater.setInput(b, off, consumed);
+            try {
+                while (!mInflater.needsInput() && !mInflater.finished()) {
+                    int n = mInflater.inflate(mInflateBuf);
+                    mManifestBytes.write(mInflateBuf, 0, n);
+                    if (n == 0 && mInflater.needsDictionary()) {
+                        giveUp("deflate stream needs a dictionary");
+                        return consumed;
+                    }
+                }
+            } catch (DataFormatException e) {
+                giveUp("corrupt manifest entry: " + e.getMessage());
+                return consumed;
+            }
+        }
+        if (mManifestBytes.size() > MAX_MANIFEST_SIZE) {
+            giveUp("manifest too large");
+        } else if (mRemaining == 0 || (mInflater != null && mInflater.finished())) {
+            onManifestComplete();
+        }
+        return consumed;
+    }
+
+    private void onManifestComplete() {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final byte[] manifest = mManifestBytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(manifest);
+        mManifestCrc = crc.getValue();
+        mManifestSize = manifest.length;
+        try {
+            mManifest = WearPackageManifest.parse(manifest);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not decode manifest: " + e.getMessage());
+        }
+        mParseNanos = SystemClock.elapsedRealtimeNanos() - start;
+        finish();
+        if (mManifest != null && mListener != null) {
+            mRejectReason = mListener.onManifestSniffed(this, mManifest, mParseNanos);
+        }
+    }
+
+    private void expectHeader() {
+        mState = STATE_HEADER;
+        mFieldLen = 0;
+        mFieldNeeded = LOCAL_HEADER_SIZE;
+    }
+
+    private void giveUp(String reason) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Not sniffing manifest: " + reason);
+        }
+        finish();
+    }
+
+    private void finish() {
+        mState = STATE_DONE;
+        mManifestBytes = null;
+        mInflateBuf = null;
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+    }
+
+    private int le16(int offset) {
+        return (mFieldBuf[offset] & 0xff) | ((mFieldBuf[offset + 1] & 0xff) << 8);
+    }
+
+    private int le32(int offset) {
+        return le16(offset) | (le16(offset + 2) << 16);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+
+/**
+ * Keeps the wear installer's per-package state in line with packages being installed, updated
+ * or removed, whoever did it.
+ *
+ * It ships disabled, so other devices don't start the process for every package change. The
+ * wear service enables it on watches before it caches anything.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+    /** Enable the receiver, it stays enabled across reboots. */
+    static void enable(Context context) {
+        final PackageManager pm = context.getPackageManager();
+        final ComponentName component = new ComponentName(context, PackageChangeReceiver.class);
+        if (pm.getComponentEnabledSetting(component)
+                != PackageManager.COMPONENT_ENABLED_STATE_ENABLED) {
+            pm.setComponentEnabledSetting(component,
+                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        String packageName = data != null ? data.getSchemeSpecificPart() : null;
+        if (packageName == null) {
+            return;
+        }
+        ApkDigestIndex.get(context).onPackageChanged(packageName);
+        WearPackageIconProvider.invalidateCallerCache();
+    }
+}
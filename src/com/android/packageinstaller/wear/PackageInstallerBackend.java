@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * What {@link WearPackageInstallerService} installs packages through. The real backend is
+ * {@link PackageInstallerImpl}; {@link FakePackageInstaller} stands in for it when load testing.
+ *
+ * @see PackageInstallerFactory
+ */
+public interface PackageInstallerBackend {
+    /**
+     * This callback will be made after an installation attempt succeeds or fails.
+     */
+    interface InstallListener {
+        /**
+         * This callback signals that preflight checks have succeeded and installation
+         * is beginning.
+         */
+        void installBeginning();
+
+        /**
+         * This callback signals that installation has completed.
+         */
+        void installSucceeded();
+
+        /**
+         * This callback signals that installation has failed.
+         */
+        void installFailed(int errorCode, String errorDesc);
+    }
+
+    /** An APK that has been fully written to the backend, but not installed yet. */
+    interface StagedPackage {
+        /** Read the staged APK back. */
+        InputStream openRead() throws IOException;
+    }
+
+    /**
+     * Gate that is consulted once the APK has been fully written to the session, and before the
+     * session is committed.
+     */
+    interface StagedPackageVerifier {
+        /**
+         * Called on the install thread, while the session is still open.
+         *
+         * @param staged The APK written to the session
+         * @return {@link InstallerConstants#STATUS_SUCCESS} to commit the session,
+         *         {@link InstallerConstants#STATUS_ALREADY_INSTALLED} to abandon it and report
+         *         success, or an error code to abandon it and report that error
+         */
+        int verifyStagedPackage(StagedPackage staged);
+    }
+
+    /**
+     * Install the APK read from {@code apkStream}. This must not be called on main thread. It
+     * may be called concurrently for different packages, but not for the same package.
+     *
+     * @param apkStream The uncompressed APK, will be closed
+     * @param apkSize Exact length of {@code apkStream}, or -1 if unknown. Lets the backend
+     *                reserve the space up front, and fail before copying anything if it can't
+     * @param verifier Can be null. Checks the staged APK before it is committed
+     * @param trace Receives the timings of the session write, fsync and commit
+     */
+    void install(String packageName, InputStream apkStream, long apkSize,
+            StagedPackageVerifier verifier, InstallListener callback, InstallStats.Trace trace);
+}
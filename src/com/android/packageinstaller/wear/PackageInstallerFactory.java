@@ -18,19 +18,48 @@ package com.android.packageinstaller.wear;
 
 import android.content.Context;
 
+import java.util.HashMap;
+import java.util.UUID;
+
 /**
  * Factory that creates a Package Installer.
  */
 public class PackageInstallerFactory {
-    private static PackageInstallerImpl sPackageInstaller;
+    private static PackageInstallerBackend sPackageInstaller;
+    /** Backends that only serve the requests carrying their token, by token. */
+    private static final HashMap<String, PackageInstallerBackend> sScopedInstallers =
+            new HashMap<>();
 
     /**
      * Return the PackageInstaller shared object. {@code init} should have already been called.
      */
-    public synchronized static PackageInstallerImpl getPackageInstaller(Context context) {
+    public synchronized static PackageInstallerBackend getPackageInstaller(Context context) {
         if (sPackageInstaller == null) {
             sPackageInstaller = new PackageInstallerImpl(context);
         }
         return sPackageInstaller;
     }
-}
\ No newline at end of file
+
+    /**
+     * @param token The {@link WearPackageArgs#getInstallerToken installer token} of a request
+     * @return the backend the request goes to, or null if its scoped backend is gone
+     */
+    public synchronized static PackageInstallerBackend getPackageInstaller(Context context,
+            String token) {
+        return token != null ? sScopedInstallers.get(token) : getPackageInstaller(context);
+    }
+
+    /**
+     * Make {@code installer}, e.g. a {@link FakePackageInstaller}, serve the requests that carry
+     * the returned token. All other requests still go to the shared object.
+     */
+    public synchronized static String registerScopedInstaller(PackageInstallerBackend installer) {
+        final String token = UUID.randomUUID().toString();
+        sScopedInstallers.put(token, installer);
+        return token;
+    }
+
+    public synchronized static void unregisterScopedInstaller(String token) {
+        sScopedInstallers.remove(token);
+    }
+}
@@ -25,13 +25,20 @@ import android.content.IntentFilter;
 import android.content.IntentSender;
 import android.content.pm.PackageInstaller;
 import android.os.Build;
-import android.os.ParcelFileDescriptor;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.storage.StorageManager;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implementation of package manager installation using modern PackageInstaller api.
@@ -39,17 +46,26 @@ import java.util.Map;
  * Heavily copied from Wearsky/Finsky implementation
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-public class PackageInstallerImpl {
+public class PackageInstallerImpl implements PackageInstallerBackend {
     private static final String TAG = "PackageInstallerImpl";
 
     /** Intent actions used for broadcasts from PackageInstaller back to the local receiver */
     private static final String ACTION_INSTALL_COMMIT =
             "com.android.vending.INTENT_PACKAGE_INSTALL_COMMIT";
 
+    /** How long a commit may take to report back before it is given up on. */
+    private static final long COMMIT_TIMEOUT_MS = 5 * 60 * 1000;
+
     private final Context mContext;
     private final PackageInstaller mPackageInstaller;
+    // Installs of different packages run concurrently, and commit callbacks arrive on the main
+    // thread, so both maps must be safe for concurrent use. Entries for any one package are only
+    // changed by one install at a time (see PackageTaskExecutor) and by its commit callback.
     private final Map<String, PackageInstaller.SessionInfo> mSessionInfoMap;
     private final Map<String, PackageInstaller.Session> mOpenSessionMap;
+    /** Commits that have not reported back yet, by session id. */
+    private final Map<Integer, PendingCommit> mPendingCommits = new ConcurrentHashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     public PackageInstallerImpl(Context context) {
         mContext = context.getApplicationContext();
@@ -57,11 +73,16 @@ public class PackageInstallerImpl {
 
         // Capture a map of known sessions
         // This list will be pruned a bit later (stale sessions will be canceled)
-        mSessionInfoMap = new HashMap<String, PackageInstaller.SessionInfo>();
+        mSessionInfoMap = new ConcurrentHashMap<String, PackageInstaller.SessionInfo>();
         List<PackageInstaller.SessionInfo> mySessions = mPackageInstaller.getMySessions();
+        Set<Integer> sessionIds = new HashSet<Integer>();
         for (int i = 0; i < mySessions.size(); i++) {
             PackageInstaller.SessionInfo sessionInfo = mySessions.get(i);
+            sessionIds.add(sessionInfo.getSessionId());
             String packageName = sessionInfo.getAppPackageName();
+            if (packageName == null) {
+                continue;
+            }
             PackageInstaller.SessionInfo oldInfo = mSessionInfoMap.put(packageName, sessionInfo);
 
             // Checking for old info is strictly for logging purposes
@@ -70,28 +91,24 @@ public class PackageInstallerImpl {
                         .getSessionId() + " & keeping " + mySessions.get(i).getSessionId());
             }
         }
-        mOpenSessionMap = new HashMap<String, PackageInstaller.Session>();
-    }
-
-    /**
-     * This callback will be made after an installation attempt succeeds or fails.
-     */
-    public interface InstallListener {
-        /**
-         * This callback signals that preflight checks have succeeded and installation
-         * is beginning.
-         */
-        void installBeginning();
+        mOpenSessionMap = new ConcurrentHashMap<String, PackageInstaller.Session>();
+        SessionCheckpoint.prune(mContext, sessionIds);
 
-        /**
-         * This callback signals that installation has completed.
-         */
-        void installSucceeded();
-
-        /**
-         * This callback signals that installation has failed.
-         */
-        void installFailed(int errorCode, String errorDesc);
+        // One receiver for the results of all commits, for the lifetime of the process.
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int sessionId = intent.getIntExtra(PackageInstaller.EXTRA_SESSION_ID, -1);
+                PendingCommit commit = mPendingCommits.remove(sessionId);
+                if (commit == null) {
+                    Log.w(TAG, "Commit result for unknown or timed out session " + sessionId);
+                    return;
+                }
+                mHandler.removeCallbacks(commit);
+                handleCommitCallback(intent, commit.mPackageName, sessionId, commit.mCallback,
+                        commit.mTrace);
+            }
+        }, new IntentFilter(ACTION_INSTALL_COMMIT));
     }
 
     /**
@@ -99,13 +116,17 @@ public class PackageInstallerImpl {
      * call. This will be replaced by more granular versions that allow longer session lifetimes,
      * download progress tracking, etc.
      *
-     * This must not be called on main thread.
+     * The staged APK given to {@code verifier} is read back from the still open session.
      */
-    public void install(final String packageName, ParcelFileDescriptor parcelFileDescriptor,
-            final InstallListener callback) {
+    @Override
+    public void install(final String packageName, InputStream apkStream, long apkSize,
+            StagedPackageVerifier verifier, final InstallListener callback,
+            final InstallStats.Trace trace) {
         // 0. Generic try/catch block because I am not really sure what exceptions (other than
         // IOException) might be thrown by PackageInstaller and I want to handle them
         // at least slightly gracefully.
+        InstallTask task = null;
+        int sessionId = -1;
         try {
             // 1. Create or recover a session, and open it
             // Try recovery first
@@ -119,9 +140,10 @@ public class PackageInstallerImpl {
             // If we cannot create or open here, the failure is terminal.
             if (session == null) {
                 try {
-                    innerCreateSession(packageName);
+                    innerCreateSession(packageName, apkSize);
                 } catch (IOException ioe) {
                     Log.e(TAG, "Can't create session for " + packageName + ": " + ioe.getMessage());
+                    InstallTask.safeClose(apkStream);
                     callback.installFailed(InstallerConstants.ERROR_INSTALL_CREATE_SESSION,
                             "Could not create session");
                     mSessionInfoMap.remove(packageName);
@@ -133,6 +155,7 @@ public class PackageInstallerImpl {
                     mOpenSessionMap.put(packageName, session);
                 } catch (SecurityException se) {
                     Log.e(TAG, "Can't open session for " + packageName + ": " + se.getMessage());
+                    InstallTask.safeClose(apkStream);
                     callback.installFailed(InstallerConstants.ERROR_INSTALL_OPEN_SESSION,
                             "Can't open session");
                     mSessionInfoMap.remove(packageName);
@@ -141,15 +164,45 @@ public class PackageInstallerImpl {
             }
 
             // 2. Launch task to handle file operations.
-            InstallTask task = new InstallTask( mContext, packageName, parcelFileDescriptor,
-                    callback, session,
-                    getCommitCallback(packageName, sessionInfo.getSessionId(), callback));
+            sessionId = sessionInfo.getSessionId();
+            SessionCheckpoint checkpoint = SessionCheckpoint.load(mContext, sessionId,
+                    packageName);
+            // Fail now rather than after seconds of decompressing and copying into a full disk.
+            if (apkSize > 0 && !hasStorageFor(packageName,
+                    apkSize - (long) checkpoint.getChunkCount() * SessionCheckpoint.CHUNK_SIZE)) {
+                InstallTask.safeClose(apkStream);
+                cancelSession(sessionId, packageName);
+                callback.installFailed(InstallerConstants.ERROR_INSTALL_INSUFFICIENT_STORAGE,
+                        "Not enough storage for " + apkSize + " bytes");
+                return;
+            }
+            final int commitSessionId = sessionId;
+            task = new InstallTask(mContext, packageName, apkStream, apkSize, verifier, callback,
+                    session, checkpoint, trace, new InstallTask.CommitCallbackProvider() {
+                        @Override
+                        public IntentSender getCommitCallback() {
+                            return PackageInstallerImpl.this.getCommitCallback(packageName,
+                                    commitSessionId, callback, trace);
+                        }
+                    });
             task.execute();
-            if (task.isError()) {
-                cancelSession(sessionInfo.getSessionId(), packageName);
+            if (!task.isCommitted()) {
+                dropPendingCommit(sessionId);
+            }
+            if (task.canResume()) {
+                // Keep the session and its checkpoint, the next attempt picks up from there.
+                closeSession(packageName);
+            } else if (task.isError() || task.isAlreadyInstalled()) {
+                cancelSession(sessionId, packageName);
             }
         } catch (Exception e) {
             Log.e(TAG, "Unexpected exception while installing " + packageName);
+            InstallTask.safeClose(apkStream);
+            if (task != null && task.isCommitted()) {
+                // The commit result reports the outcome.
+                return;
+            }
+            dropPendingCommit(sessionId);
             callback.installFailed(InstallerConstants.ERROR_INSTALL_SESSION_EXCEPTION,
                     "Unexpected exception while installing " + packageName);
         }
@@ -197,8 +250,28 @@ public class PackageInstallerImpl {
         return session;
     }
 
-    /** This version throws an IOException when the session cannot be created */
-    private void innerCreateSession(String packageName) throws IOException {
+    /**
+     * Check that {@code bytes} more can be staged without pushing the data partition below its
+     * low storage threshold.
+     */
+    private boolean hasStorageFor(String packageName, long bytes) {
+        File dataDir = Environment.getDataDirectory();
+        long available = dataDir.getUsableSpace()
+                - StorageManager.from(mContext).getStorageLowBytes(dataDir);
+        if (available < bytes) {
+            Log.e(TAG, "Need " + bytes + " bytes to install " + packageName + ", only "
+                    + available + " available");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * This version throws an IOException when the session cannot be created
+     *
+     * @param size Size of the APK, or -1 if unknown
+     */
+    private void innerCreateSession(String packageName, long size) throws IOException {
         if (mSessionInfoMap.containsKey(packageName)) {
             Log.w(TAG, "Creating session for " + packageName + " when one already exists");
             return;
@@ -206,6 +279,9 @@ public class PackageInstallerImpl {
         PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
                 PackageInstaller.SessionParams.MODE_FULL_INSTALL);
         params.setAppPackageName(packageName);
+        if (size > 0) {
+            params.setSize(size);
+        }
 
         // IOException may be thrown at this point
         int sessionId = mPackageInstaller.createSession(params);
@@ -217,10 +293,15 @@ public class PackageInstallerImpl {
      * Cancel a session based on its sessionId. Package name is for logging only.
      */
     private void cancelSession(int sessionId, String packageName) {
-        // Close if currently held open
-        closeSession(packageName);
-        // Remove local record
-        mSessionInfoMap.remove(packageName);
+        PackageInstaller.SessionInfo sessionInfo = mSessionInfoMap.get(packageName);
+        // A later install of the package may have its own session by now, leave that one be.
+        if (sessionInfo == null || sessionInfo.getSessionId() == sessionId) {
+            // Close if currently held open
+            closeSession(packageName);
+            // Remove local record
+            mSessionInfoMap.remove(packageName);
+        }
+        SessionCheckpoint.delete(mContext, sessionId);
         try {
             mPackageInstaller.abandonSession(sessionId);
         } catch (SecurityException se) {
@@ -246,32 +327,69 @@ public class PackageInstallerImpl {
     }
 
     /**
-     * Creates a commit callback for the package install that's underway. This will be called
-     * some time after calling session.commit() (above).
+     * Creates a commit callback for the package install that's underway, right before its
+     * session is committed. This will be called some time after calling session.commit()
+     * (above), or after {@link #COMMIT_TIMEOUT_MS} if the result is lost.
      */
     private IntentSender getCommitCallback(final String packageName, final int sessionId,
-            final InstallListener callback) {
-        // Create a single-use broadcast receiver
-        BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                mContext.unregisterReceiver(this);
-                handleCommitCallback(intent, packageName, sessionId, callback);
-            }
-        };
-        // Create a matching intent-filter and register the receiver
-        String action = ACTION_INSTALL_COMMIT + "." + packageName;
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(action);
-        mContext.registerReceiver(broadcastReceiver, intentFilter);
-
-        // Create a matching PendingIntent and use it to generate the IntentSender
-        Intent broadcastIntent = new Intent(action);
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(mContext, packageName.hashCode(),
+            final InstallListener callback, final InstallStats.Trace trace) {
+        // The session id tells the shared receiver which install the result is for.
+        Intent broadcastIntent = new Intent(ACTION_INSTALL_COMMIT)
+                .setPackage(mContext.getPackageName())
+                .putExtra(PackageInstaller.EXTRA_SESSION_ID, sessionId);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(mContext, sessionId,
                 broadcastIntent, PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
+
+        PendingCommit commit = new PendingCommit(packageName, sessionId, callback, trace,
+                pendingIntent);
+        mPendingCommits.put(sessionId, commit);
+        mHandler.postDelayed(commit, COMMIT_TIMEOUT_MS);
         return pendingIntent.getIntentSender();
     }
 
+    /**
+     * Forget the commit callback of {@code sessionId} if the session ended up not being
+     * committed, so its timeout doesn't fail the install a second time.
+     */
+    private void dropPendingCommit(int sessionId) {
+        PendingCommit commit = mPendingCommits.remove(sessionId);
+        if (commit != null) {
+            mHandler.removeCallbacks(commit);
+            commit.mPendingIntent.cancel();
+        }
+    }
+
+    /** An install waiting for the result of its commit. Runs when the result times out. */
+    private class PendingCommit implements Runnable {
+        private final String mPackageName;
+        private final int mSessionId;
+        private final InstallListener mCallback;
+        private final InstallStats.Trace mTrace;
+        private final PendingIntent mPendingIntent;
+
+        private PendingCommit(String packageName, int sessionId, InstallListener callback,
+                InstallStats.Trace trace, PendingIntent pendingIntent) {
+            mPackageName = packageName;
+            mSessionId = sessionId;
+            mCallback = callback;
+            mTrace = trace;
+            mPendingIntent = pendingIntent;
+        }
+
+        @Override
+        public void run() {
+            if (!mPendingCommits.remove(mSessionId, this)) {
+                return;
+            }
+            Log.e(TAG, "No commit result for " + mPackageName + " after " + COMMIT_TIMEOUT_MS
+                    + " ms");
+            mPendingIntent.cancel();
+            cancelSession(mSessionId, mPackageName);
+            mCallback.installFailed(InstallerConstants.ERROR_INSTALL_COMMIT_TIMEOUT,
+                    "Commit did not report back");
+        }
+    }
+
     /**
      * Examine the extras to determine information about the package update/install, decode
      * the result, and call the appropriate callback.
@@ -280,9 +398,11 @@ public class PackageInstallerImpl {
      * @param packageName The package name we created the receiver for
      * @param sessionId The session Id we created the receiver for
      * @param callback The callback to report success/failure to
+     * @param trace The trace to record the commit latency in
      */
     private void handleCommitCallback(Intent intent, String packageName, int sessionId,
-            InstallListener callback) {
+            InstallListener callback, InstallStats.Trace trace) {
+        trace.end(InstallStats.STAGE_COMMIT);
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "Installation of " + packageName + " finished with extras "
                     + intent.getExtras());
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs install/uninstall tasks on a bounded pool of threads. Tasks for different packages run in
+ * parallel, highest {@link Task#getPriority() priority} first, while tasks for the same package
+ * run strictly one after another in submission order.
+ *
+ * A task keeps its package busy until {@link #finished(String)} is called for that package, not
+ * just until its {@code run()} returns, since installs complete asynchronously once the session
+ * has been committed.
+ *
+ * Queueing a {@link Task#isCoalescable() coalescable} task (an install) supersedes the
+ * coalescable tasks queued right before it for the same package: they are dropped without
+ * running, and if the package's current task is coalescable too, it is {@link Task#isCancelled()
+ * cancelled}. Three quick updates of one app thus install only the last one.
+ */
+public class PackageTaskExecutor {
+    private static final String TAG = "PackageTaskExecutor";
+
+    private static final int INITIAL_QUEUE_CAPACITY = 16;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Packages with a task that is running or waiting for {@link #finished}, mapped to the tasks
+     * queued behind it.
+     */
+    private final HashMap<String, ArrayDeque<Task>> mBusyPackages = new HashMap<>();
+    /** The task each busy package is waiting for. */
+    private final HashMap<String, Task> mCurrentTasks = new HashMap<>();
+    private long mNextSequence;
+
+    /**
+     * A task for one package.
+     */
+    public abstract static class Task implements Runnable {
+        private final String mPackageName;
+        private final int mPriority;
+        private final boolean mCoalescable;
+        private long mSequence;
+        private volatile boolean mCancelled;
+
+        /**
+         * @param priority Tasks with a higher priority are started first
+         * @param coalescable Whether a newer coalescable task for the same package makes this
+         *                    one redundant
+         */
+        public Task(String packageName, int priority, boolean coalescable) {
+            mPackageName = packageName;
+            mPriority = priority;
+            mCoalescable = coalescable;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public boolean isCoalescable() {
+            return mCoalescable;
+        }
+
+        /**
+         * @return true if a newer task has superseded this one while it was running. It should
+         *         then stop as soon as it can, and still report {@link #finished}.
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Called instead of {@link #run()} when a newer task superseded this one before it
+         * started. The package was never busy on its behalf, so {@link #finished} must not be
+         * called for it.
+         */
+        protected abstract void onDropped();
+    }
+
+    /** Fails reads once its task has been cancelled, so a superseded copy stops early. */
+    public static class CancellableInputStream extends FilterInputStream {
+        private final Task mTask;
+
+        public CancellableInputStream(InputStream in, Task task) {
+            super(in);
+            mTask = task;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            return super.read(b, off, len);
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (mTask.isCancelled()) {
+                throw new InterruptedIOException("Superseded by a newer request for "
+                        + mTask.getPackageName());
+            }
+        }
+    }
+
+    public PackageTaskExecutor(int threads, final String threadName) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(INITIAL_QUEUE_CAPACITY,
+                        new Comparator<Runnable>() {
+                            @Override
+                            public int compare(Runnable a, Runnable b) {
+                                Task ta = (Task) a;
+                                Task tb = (Task) b;
+                                if (ta.mPriority != tb.mPriority) {
+                                    return ta.mPriority > tb.mPriority ? -1 : 1;
+                                }
+                                return Long.compare(ta.mSequence, tb.mSequence);
+                            }
+                        }),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, threadName + "-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue {@code task}. It runs once every earlier task for the same package has been
+     * {@link #finished}, unless a newer task supersedes it first.
+     */
+    public void execute(Task task) {
+        final String packageName = task.getPackageName();
+        ArrayList<Task> dropped = null;
+        boolean start = false;
+        synchronized (mBusyPackages) {
+            task.mSequence = mNextSequence++;
+            ArrayDeque<Task> queue = mBusyPackages.get(packageName);
+            if (queue != null) {
+                if (task.isCoalescable()) {
+                    dropped = new ArrayList<>();
+                    while (!queue.isEmpty() && queue.peekLast().isCoalescable()) {
+                        dropped.add(queue.pollLast());
+                    }
+                    Task current = mCurrentTasks.get(packageName);
+                    if (queue.isEmpty() && current.isCoalescable() && !current.mCancelled) {
+                        Log.i(TAG, "Cancelling superseded task for " + packageName);
+                        current.mCancelled = true;
+                    }
+                }
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Queueing task for busy package " + packageName);
+                }
+                queue.add(task);
+            } else {
+                mBusyPackages.put(packageName, new ArrayDeque<Task>());
+                mCurrentTasks.put(packageName, task);
+                start = true;
+            }
+        }
+        if (dropped != null) {
+            for (Task t : dropped) {
+                Log.i(TAG, "Dropping superseded task for " + packageName);
+                t.onDropped();
+            }
+        }
+        if (start) {
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Signal that the current task for {@code packageName} is complete, and start the next one.
+     */
+    public void finished(String packageName) {
+        Task next;
+        synchronized (mBusyPackages) {
+            ArrayDeque<Task> queue = mBusyPackages.get(packageName);
+            if (queue == null) {
+                Log.w(TAG, "No task running for " + packageName);
+                return;
+            }
+            next = queue.poll();
+            if (next == null) {
+                mBusyPackages.remove(packageName);
+                mCurrentTasks.remove(packageName);
+            } else {
+                mCurrentTasks.put(packageName, next);
+            }
+        }
+        if (next != null) {
+            mExecutor.execute(next);
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a multi-block XZ file on several threads. Blocks are located through the XZ index,
+ * decoded independently from positional reads of the file, and handed out in order. Decoders
+ * are pooled, so the index is only parsed again for each decoder that runs concurrently, not
+ * for every block.
+ *
+ * Use {@link #open} which returns null when the input is not worth (or not possible) to decode
+ * in parallel, in which case the caller should fall back to a plain
+ * {@link org.tukaani.xz.XZInputStream}.
+ */
+public class ParallelXZInputStream extends InputStream {
+    private static final String TAG = "ParallelXZInputStream";
+
+    private static final int MAX_THREADS = 4;
+
+    /** Upper bound on the decoded bytes held by blocks that are in flight. */
+    private static final long MAX_IN_FLIGHT_BYTES = 32 * 1024 * 1024;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final ParcelFileDescriptor mFd;
+    private final FileChannel mChannel;
+    private final long[] mBlockSizes;
+    private final int mWindow;
+    private final ArrayDeque<Future<byte[]>> mInFlight = new ArrayDeque<>();
+    /** Decoders not in use by a block; each one has parsed the index already. */
+    private final ArrayDeque<SeekableXZInputStream> mDecoders = new ArrayDeque<>();
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private int mNextBlock;
+    private byte[] mCurrent;
+    private int mCurrentPos;
+    private long mBytesRead;
+    private boolean mClosed;
+
+    private ParallelXZInputStream(ParcelFileDescriptor fd, FileChannel channel,
+            SeekableXZInputStream decoder, long[] blockSizes, int window) {
+        mFd = fd;
+        mChannel = channel;
+        mDecoders.add(decoder);
+        mBlockSizes = blockSizes;
+        mWindow = window;
+        fill();
+    }
+
+    /**
+     * @param fd XZ file to decode. Ownership passes to the returned stream; if null is returned,
+     *           {@code fd} is left open and untouched (its offset is not moved).
+     * @return the stream, or null if {@code fd} is not a regular file, has fewer than two
+     *         blocks, or has blocks too large to decode in parallel.
+     */
+    public static ParallelXZInputStream open(ParcelFileDescriptor fd) {
+        if (getThreadCount() < 2) {
+            return null;
+        }
+        try {
+            if (!OsConstants.S_ISREG(Os.fstat(fd.getFileDescriptor()).st_mode)) {
+                return null;
+            }
+        } catch (ErrnoException e) {
+            return null;
+        }
+
+        FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+        SeekableXZInputStream xz;
+        long[] blockSizes;
+        long largestBlock = 0;
+        try {
+            xz = new SeekableXZInputStream(
+                    new ChannelSeekableInputStream(channel));
+            blockSizes = new long[xz.getBlockCount()];
+            for (int i = 0; i < blockSizes.length; i++) {
+                blockSizes[i] = xz.getBlockSize(i);
+                largestBlock = Math.max(largestBlock, blockSizes[i]);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read XZ index: " + e.getMessage());
+            return null;
+        }
+
+        if (blockSizes.length < 2) {
+            return null;
+        }
+        int window = (int) Math.min(getThreadCount() + 1,
+                MAX_IN_FLIGHT_BYTES / Math.max(largestBlock, 1));
+        if (window < 2) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Blocks of " + largestBlock + " bytes are too large to decode in "
+                        + "parallel");
+            }
+            return null;
+        }
+        return new ParallelXZInputStream(fd, channel, xz, blockSizes, window);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (mCurrent == null || mCurrentPos == mCurrent.length) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, mCurrent.length - mCurrentPos);
+        System.arraycopy(mCurrent, mCurrentPos, b, off, n);
+        mCurrentPos += n;
+        mBytesRead += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return mCurrent == null ? 0 : mCurrent.length - mCurrentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        for (Future<byte[]> future : mInFlight) {
+            future.cancel(true);
+        }
+        mInFlight.clear();
+        synchronized (mDecoders) {
+            mDecoders.clear();
+        }
+        mCurrent = null;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Decoded " + mBytesRead + " bytes from " + mBlockSizes.length
+                    + " blocks in " + (SystemClock.elapsedRealtime() - mStartTime) + " ms");
+        }
+        mFd.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        Future<byte[]> future = mInFlight.poll();
+        if (future == null) {
+            mCurrent = null;
+            return false;
+        }
+        try {
+            mCurrent = future.get();
+            mCurrentPos = 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decoding", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not decode block", cause);
+        }
+        fill();
+        return true;
+    }
+
+    private void fill() {
+        while (mInFlight.size() < mWindow && mNextBlock < mBlockSizes.length) {
+            mInFlight.add(getExecutor().submit(new DecodeBlock(mNextBlock++)));
+        }
+    }
+
+    private final class DecodeBlock implements Callable<byte[]> {
+        private final int mBlock;
+
+        DecodeBlock(int block) {
+            mBlock = block;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            // Decoders are used by one block at a time; positional reads keep them independent.
+            SeekableXZInputStream xz = takeDecoder();
+            xz.seekToBlock(mBlock);
+            byte[] out = new byte[(int) mBlockSizes[mBlock]];
+            int pos = 0;
+            while (pos < out.length) {
+                int n = xz.read(out, pos, out.length - pos);
+                if (n < 0) {
+                    throw new IOException("Block " + mBlock + " ended after " + pos + " bytes");
+                }
+                pos += n;
+            }
+            // Only a decoder that finished its block cleanly is reused.
+            returnDecoder(xz);
+            return out;
+        }
+    }
+
+    private SeekableXZInputStream takeDecoder() throws IOException {
+        synchronized (mDecoders) {
+            SeekableXZInputStream xz = mDecoders.poll();
+            if (xz != null) {
+                return xz;
+            }
+        }
+        return new SeekableXZInputStream(new ChannelSeekableInputStream(mChannel));
+    }
+
+    private void returnDecoder(SeekableXZInputStream xz) {
+        synchronized (mDecoders) {
+            if (!mClosed) {
+                mDecoders.add(xz);
+            }
+        }
+    }
+
+    /** Read-only view of a file using positional reads, so it can be shared between threads. */
+    static final class ChannelSeekableInputStream extends SeekableInputStream {
+        private final FileChannel mChannel;
+        private long mPos;
+
+        ChannelSeekableInputStream(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = mChannel.read(ByteBuffer.wrap(b, off, len), mPos);
+            if (n > 0) {
+                mPos += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public long position() {
+            return mPos;
+        }
+
+        @Override
+        public void seek(long pos) {
+            mPos = pos;
+        }
+
+        @Override
+        public void close() {
+            // The channel is shared, it is closed with the owning stream.
+        }
+    }
+
+    private static int getThreadCount() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            final int threads = getThreadCount();
+            sExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "XZDecoder-" + mCount.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+}
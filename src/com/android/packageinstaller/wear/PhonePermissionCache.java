@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Permissions granted to the companion (phone) apps, as read from the permission URIs of install
+ * requests. Every app of a batch usually comes with the same URI, so each URI is queried once and
+ * the result shared until the provider reports a change, or {@link #MAX_AGE_MS} passes for
+ * providers that don't.
+ *
+ * Queries run in the background: {@link #prefetch} is called when an install starts, so the
+ * result is usually there by the time the APK has been decompressed and its manifest checked.
+ */
+public class PhonePermissionCache {
+    private static final String TAG = "PhonePermissionCache";
+
+    private static final long MAX_AGE_MS = 60 * 1000;
+
+    private static PhonePermissionCache sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<Uri, Query> mQueries = new ConcurrentHashMap<>();
+    private final Set<Uri> mObserved = Collections.newSetFromMap(
+            new ConcurrentHashMap<Uri, Boolean>());
+
+    /** The granted and ungranted permissions listed by one permission URI. */
+    public static class Grants {
+        private final Set<String> mGranted;
+        private final Set<String> mUngranted;
+
+        private Grants(Set<String> granted, Set<String> ungranted) {
+            mGranted = granted;
+            mUngranted = ungranted;
+        }
+
+        public boolean isGranted(String permission) {
+            return mGranted.contains(permission);
+        }
+
+        /** @return true if the phone app declares {@code permission}, granted or not */
+        public boolean isDeclared(String permission) {
+            return mGranted.contains(permission) || mUngranted.contains(permission);
+        }
+    }
+
+    public static synchronized PhonePermissionCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhonePermissionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PhonePermissionCache(Context context) {
+        mContext = context;
+    }
+
+    /** Start reading {@code permUri} in the background, unless it is cached or being read. */
+    public void prefetch(Uri permUri) {
+        getQuery(permUri);
+    }
+
+    /**
+     * @return the grants listed by {@code permUri}, waiting for them to be read if needed, or
+     *         null if the provider could not be queried.
+     */
+    public Grants getGrants(Uri permUri) {
+        Query query = getQuery(permUri);
+        try {
+            return query.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Could not read the permissions from " + permUri, e.getCause());
+            mQueries.remove(permUri, query);
+            return null;
+        }
+    }
+
+    private Query getQuery(final Uri permUri) {
+        Query query = mQueries.get(permUri);
+        if (query != null && !query.isExpired()) {
+            return query;
+        }
+        observe(permUri);
+        Query newQuery = new Query(permUri);
+        if (query == null ? mQueries.putIfAbsent(permUri, newQuery) != null
+                : !mQueries.replace(permUri, query, newQuery)) {
+            // Someone else started a query just now.
+            return mQueries.get(permUri);
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(newQuery);
+        return newQuery;
+    }
+
+    private void observe(final Uri permUri) {
+        if (!mObserved.add(permUri)) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().registerContentObserver(permUri, true,
+                    new ContentObserver(mHandler) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                                Log.d(TAG, "Permissions changed at " + permUri);
+                            }
+                            mQueries.remove(permUri);
+                        }
+                    });
+        } catch (SecurityException e) {
+            // Not every provider can be observed; the age limit still applies.
+            Log.w(TAG, "Can't observe " + permUri + ": " + e.getMessage());
+        }
+    }
+
+    private Grants query(Uri permUri) throws Exception {
+        Cursor permCursor = mContext.getContentResolver().query(permUri, null, null, null, null);
+        if (permCursor == null) {
+            throw new Exception("Could not get the cursor for the permissions");
+        }
+
+        Set<String> grantedPerms = new HashSet<>();
+        Set<String> ungrantedPerms = new HashSet<>();
+        try {
+            while (permCursor.moveToNext()) {
+                // Make sure that the MatrixCursor returned by the ContentProvider has 2 columns
+                // and verify their types.
+                if (permCursor.getColumnCount() == 2
+                        && Cursor.FIELD_TYPE_STRING == permCursor.getType(0)
+                        && Cursor.FIELD_TYPE_INTEGER == permCursor.getType(1)) {
+                    String perm = permCursor.getString(0);
+                    if (permCursor.getInt(1) == 1) {
+                        grantedPerms.add(perm);
+                    } else {
+                        ungrantedPerms.add(perm);
+                    }
+                }
+            }
+        } finally {
+            permCursor.close();
+        }
+        return new Grants(grantedPerms, ungrantedPerms);
+    }
+
+    private class Query extends FutureTask<Grants> {
+        private final long mStartTime = SystemClock.elapsedRealtime();
+
+        Query(final Uri permUri) {
+            super(new Callable<Grants>() {
+                @Override
+                public Grants call() throws Exception {
+                    return query(permUri);
+                }
+            });
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - mStartTime > MAX_AGE_MS;
+        }
+    }
+}
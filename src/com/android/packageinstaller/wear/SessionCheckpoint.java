@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Records how much of an APK has been durably written to an install session, so that an
+ * interrupted install can continue where it stopped instead of streaming the whole APK again.
+ *
+ * The APK is split in chunks of {@link #CHUNK_SIZE} bytes, and the CRC32 of each chunk is saved
+ * once the session has been fsynced past it. On a retry the incoming stream is checksummed chunk
+ * by chunk against the saved values; matching chunks are skipped and writing resumes at the first
+ * chunk that is missing or differs.
+ */
+public class SessionCheckpoint {
+    private static final String TAG = "SessionCheckpoint";
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /** The session is fsynced and the checkpoint saved every this many chunks. */
+    public static final int CHUNKS_PER_SYNC = 4;
+
+    private static final String CHECKPOINT_DIR = "install_checkpoints";
+    private static final int VERSION = 1;
+
+    private final AtomicFile mFile;
+    private final String mPackageName;
+    private int[] mCrcs = new int[16];
+    private int mCount;
+
+    private SessionCheckpoint(AtomicFile file, String packageName) {
+        mFile = file;
+        mPackageName = packageName;
+    }
+
+    /**
+     * Load the checkpoint of {@code sessionId}. The returned checkpoint is empty if there is
+     * none, or if it was saved for another package.
+     */
+    public static SessionCheckpoint load(Context context, int sessionId, String packageName) {
+        SessionCheckpoint checkpoint = new SessionCheckpoint(
+                new AtomicFile(getFile(context, sessionId)), packageName);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(checkpoint.mFile.openRead());
+            if (in.readInt() != VERSION || !packageName.equals(in.readUTF())
+                    || in.readInt() != CHUNK_SIZE) {
+                Log.w(TAG, "Ignoring checkpoint of session " + sessionId);
+                return checkpoint;
+            }
+            final int count = in.readInt();
+            int[] crcs = new int[Math.max(count, 16)];
+            for (int i = 0; i < count; i++) {
+                crcs[i] = in.readInt();
+            }
+            checkpoint.mCrcs = crcs;
+            checkpoint.mCount = count;
+        } catch (FileNotFoundException e) {
+            // No checkpoint, start from the beginning.
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read checkpoint of session " + sessionId, e);
+        } finally {
+            InstallTask.safeClose(in);
+        }
+        return checkpoint;
+    }
+
+    public static void delete(Context context, int sessionId) {
+        new AtomicFile(getFile(context, sessionId)).delete();
+    }
+
+    /** Delete the checkpoints of every session not in {@code sessionIds}. */
+    public static void prune(Context context, Set<Integer> sessionIds) {
+        File[] files = new File(context.getFilesDir(), CHECKPOINT_DIR).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            int end = name.indexOf('.');
+            try {
+                int sessionId = Integer.parseInt(end < 0 ? name : name.substring(0, end));
+                if (sessionIds.contains(sessionId)) {
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Not ours, remove it too.
+            }
+            file.delete();
+        }
+    }
+
+    private static File getFile(Context context, int sessionId) {
+        File dir = new File(context.getFilesDir(), CHECKPOINT_DIR);
+        dir.mkdirs();
+        return new File(dir, Integer.toString(sessionId));
+    }
+
+    /** @return number of chunks known to be durably written to the session. */
+    public int getChunkCount() {
+        return mCount;
+    }
+
+    /** @return true if chunk {@code index} was saved with the checksum of {@code data}. */
+    public boolean matches(int index, byte[] data, int length) {
+        return index < mCount && length == CHUNK_SIZE && crc(data, length) == mCrcs[index];
+    }
+
+    /** Forget chunk {@code index} and every chunk after it. */
+    public void truncate(int index) {
+        mCount = Math.min(mCount, index);
+    }
+
+    /**
+     * Record the CRC32 of the next full chunk. It is not persisted until {@link #save}.
+     */
+    public void append(int crc) {
+        if (mCount == mCrcs.length) {
+            mCrcs = Arrays.copyOf(mCrcs, mCount * 2);
+        }
+        mCrcs[mCount++] = crc;
+    }
+
+    /**
+     * Persist the recorded chunks. Must only be called once they have been fsynced to the
+     * session.
+     */
+    public void save() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeUTF(mPackageName);
+            out.writeInt(CHUNK_SIZE);
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                out.writeInt(mCrcs[i]);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            // Only costs a longer copy if the install gets interrupted.
+            Log.w(TAG, "Could not save checkpoint for " + mPackageName, e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    private static int crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+}
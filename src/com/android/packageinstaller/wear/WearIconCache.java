@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Icons handed to the permission prompt through {@link WearPackageIconProvider}.
+ *
+ * Icons are stored as PNG files named after a hash of their pixels, so an icon that was already
+ * encoded for an earlier install of the same app is not encoded again. Encoding happens in the
+ * background: {@link #putIcon} returns the provider URI right away, and the provider waits for
+ * the pending encode if the icon is requested before it is done. Least recently used files are
+ * evicted once the directory grows past {@link #MAX_CACHE_BYTES}.
+ */
+public class WearIconCache {
+    private static final String TAG = "WearIconCache";
+
+    private static final String PREFS_NAME = "wear_icon_cache";
+    private static final String ICON_SUFFIX = ".icon";
+
+    private static final long MAX_CACHE_BYTES = 2 * 1024 * 1024;
+
+    /** How long the provider waits for an icon that is still being encoded. */
+    private static final long PENDING_TIMEOUT_MS = 5000;
+
+    private static WearIconCache sInstance;
+
+    private final Context mContext;
+    /** Package name to the hash of its current icon. */
+    private final SharedPreferences mPrefs;
+    private final ConcurrentHashMap<String, Future<File>> mPending = new ConcurrentHashMap<>();
+
+    public static synchronized WearIconCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new WearIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WearIconCache(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Store {@code icon} as the icon of {@code packageName}, in the background.
+     *
+     * @return the URI the icon can be read from through {@link WearPackageIconProvider}
+     */
+    public Uri putIcon(final String packageName, final Bitmap icon) {
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return storeIcon(packageName, icon);
+            }
+        }) {
+            @Override
+            protected void done() {
+                mPending.remove(packageName, this);
+            }
+        };
+        mPending.put(packageName, task);
+        AsyncTask.SERIAL_EXECUTOR.execute(task);
+        return WearPackageIconProvider.getUriForPackage(packageName);
+    }
+
+    /**
+     * @return the icon file of {@code packageName}, waiting for it to be written if needed, or
+     *         null if there is none.
+     */
+    public File getIconFile(String packageName) {
+        Future<File> pending = mPending.get(packageName);
+        if (pending != null) {
+            try {
+                return pending.get(PENDING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | TimeoutException e) {
+                Log.e(TAG, "Icon of " + packageName + " is not available", e);
+                return null;
+            }
+        }
+        String hash = mPrefs.getString(packageName, null);
+        File dir = WearPackageUtil.getIconDir(mContext);
+        if (hash == null || dir == null) {
+            return null;
+        }
+        File file = new File(dir, hash + ICON_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        // Recently served icons are the last to be evicted.
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /** Forget the icon of {@code packageName}. The file stays until it is evicted. */
+    public void removeIcon(String packageName) {
+        mPrefs.edit().remove(packageName).apply();
+    }
+
+    private File storeIcon(String packageName, Bitmap icon) throws IOException {
+        File dir = WearPackageUtil.getIconDir(mContext);
+        if (dir == null) {
+            throw new IOException("No icon directory");
+        }
+        String hash = hashPixels(icon);
+        File file = new File(dir, hash + ICON_SUFFIX);
+        if (file.exists()) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Icon of " + packageName + " is already cached");
+            }
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            File tmp = new File(dir, hash + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                icon.compress(Bitmap.CompressFormat.PNG, 0, fos);
+                fos.flush();
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Could not write icon of " + packageName);
+            }
+            evict(dir);
+        }
+        mPrefs.edit().putString(packageName, hash).apply();
+        return file;
+    }
+
+    /** Delete the least recently used files until the directory fits in the limit. */
+    private static void evict(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && total > MAX_CACHE_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static String hashPixels(Bitmap bitmap) {
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(ByteBuffer.allocate(8).putInt(bitmap.getWidth())
+                    .putInt(bitmap.getHeight()).array());
+            digest.update(pixels.array());
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every device has SHA-1, but don't fail the prompt over it.
+            return Integer.toHexString(Arrays.hashCode(pixels.array()));
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
+import android.util.Log;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Debug-only load test of the wear install pipeline. Generates synthetic XZ-compressed APKs,
+ * sends them all as one batch request to
+ * {@link WearPackageInstallerService} and reports throughput and latency percentiles. The batch
+ * goes to a {@link FakePackageInstaller} of its own; installs requested meanwhile by the companion
+ * still go to the real installer.
+ *
+ * Started from dumpsys on debuggable builds:
+ * <pre>
+ * adb shell dumpsys activity service WearPackageInstallerService \
+ *         loadtest [count [commitLatencyMs [failurePercent [apkKb]]]]
+ * </pre>
+ * The report is logged and shown by later dumps.
+ */
+public class WearInstallLoadTest {
+    private static final String TAG = "WearInstallLoadTest";
+
+    public static final String DUMP_COMMAND = "loadtest";
+
+    private static final String PACKAGE_PREFIX = "com.android.packageinstaller.loadtest.p";
+
+    private static boolean sRunning;
+    private static String sLastReport;
+
+    /** Handle the dumpsys arguments of {@link WearPackageInstallerService}. */
+    public static void dump(Context context, PrintWriter pw, String[] args) {
+        if (args != null && args.length > 0 && DUMP_COMMAND.equals(args[0])) {
+            if (!Build.IS_DEBUGGABLE) {
+                pw.println("Load test is only available on debuggable builds");
+                return;
+            }
+            try {
+                int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+                long latencyMs = args.length > 2 ? Long.parseLong(args[2]) : 50;
+                float failureRate = args.length > 3 ? Integer.parseInt(args[3]) / 100f : 0;
+                int apkKb = args.length > 4 ? Integer.parseInt(args[4]) : 512;
+                if (count <= 0 || latencyMs < 0 || apkKb < 0) {
+                    throw new NumberFormatException();
+                }
+                pw.println(start(context, count, latencyMs, failureRate, apkKb)
+                        ? "Load test started, see logcat -s " + TAG
+                        : "A load test is already running");
+            } catch (NumberFormatException e) {
+                pw.println("Usage: " + DUMP_COMMAND
+                        + " [count [commitLatencyMs [failurePercent [apkKb]]]]");
+            }
+            return;
+        }
+        synchronized (WearInstallLoadTest.class) {
+            if (sLastReport != null) {
+                pw.println("Last load test: " + sLastReport);
+            }
+        }
+    }
+
+    private static synchronized boolean start(final Context context, final int count,
+            final long latencyMs, final float failureRate, final int apkKb) {
+        if (sRunning) {
+            return false;
+        }
+        sRunning = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                run(context.getApplicationContext(), count, latencyMs, failureRate, apkKb);
+            }
+        }, TAG).start();
+        return true;
+    }
+
+    private static void run(final Context context, final int count, long latencyMs,
+            float failureRate, int apkKb) {
+        final File dir = new File(context.getCacheDir(), "loadtest");
+        final ArrayList<Bundle> items = new ArrayList<>();
+        try {
+            dir.mkdirs();
+            Random random = new Random(count);
+            for (int i = 0; i < count; i++) {
+                String packageName = PACKAGE_PREFIX + i;
+                File asset = new File(dir, packageName + ".xz");
+                writeSyntheticApk(asset, packageName, apkKb * 1024, random);
+                Bundle item = WearPackageArgs.setPackageName(new Bundle(), packageName);
+                WearPackageArgs.setAssetUri(item, Uri.fromFile(asset));
+                items.add(item);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not generate synthetic APKs", e);
+            finish(dir, null, "failed to generate APKs: " + e);
+            return;
+        }
+        Log.i(TAG, "Generated " + count + " APKs of " + apkKb + " KB, commit latency "
+                + latencyMs + " ms, failure rate " + failureRate);
+
+        final String token = PackageInstallerFactory.registerScopedInstaller(
+                new FakePackageInstaller(new File(dir, "sessions"), latencyMs, failureRate));
+
+        Bundle batch = new Bundle();
+        WearPackageArgs.setBatchArgs(batch, items);
+        WearPackageArgs.setInstallerToken(batch, token);
+        WearPackageArgs.setCompressionAlg(batch, WearPackageUtil.COMPRESSION_XZ);
+        WearPackageArgs.setResultReceiver(batch,
+                new ResultReceiver(new Handler(Looper.getMainLooper())) {
+                    @Override
+                    protected void onReceiveResult(int failed, Bundle result) {
+                        finish(dir, token, report(count, failed, result));
+                    }
+                });
+        Intent intent = new Intent(WearPackageInstallerService.ACTION_INSTALL_PACKAGES)
+                .setClass(context, WearPackageInstallerService.class)
+                .putExtras(batch);
+        context.startService(intent);
+    }
+
+    private static String report(int count, int failed, Bundle result) {
+        long total = result.getLong(InstallBatch.KEY_TOTAL_DURATION_MS);
+        long[] durations = result.getLongArray(InstallBatch.KEY_DURATIONS_MS);
+        Arrays.sort(durations);
+        return String.format("%d installs (%d failed) in %d ms, %.1f installs/s, latency ms "
+                + "p50=%d p90=%d p99=%d max=%d", count, failed, total,
+                total > 0 ? count * 1000f / total : 0f, percentile(durations, 50),
+                percentile(durations, 90), percentile(durations, 99),
+                durations[durations.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[Math.min(sorted.length - 1,
+                (sorted.length * percentile + 99) / 100 - 1)];
+    }
+
+    private static void finish(File dir, String token, String report) {
+        if (token != null) {
+            PackageInstallerFactory.unregisterScopedInstaller(token);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        Log.i(TAG, "Load test: " + report);
+        synchronized (WearInstallLoadTest.class) {
+            sLastReport = report;
+            sRunning = false;
+        }
+    }
+
+    /**
+     * Write an XZ-compressed APK holding a binary manifest and a half compressible payload.
+     * Only the manifest is meaningful; the package is never really installed.
+     */
+    private static void writeSyntheticApk(File file, String packageName, int payloadSize,
+            Random random) throws IOException {
+        XZOutputStream xz = new XZOutputStream(new FileOutputStream(file), new LZMA2Options(1));
+        try {
+            ZipOutputStream zip = new ZipOutputStream(xz);
+            // Stored with known sizes, so the manifest can be sniffed from the local header.
+            byte[] manifest = buildManifest(packageName);
+            ZipEntry entry = new ZipEntry("AndroidManifest.xml");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(manifest.length);
+            CRC32 crc = new CRC32();
+            crc.update(manifest);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(manifest);
+            zip.closeEntry();
+
+            byte[] payload = new byte[payloadSize];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) random.nextInt(16);
+            }
+            zip.putNextEntry(new ZipEntry("assets/payload.bin"));
+            zip.write(payload);
+            zip.closeEntry();
+            zip.finish();
+        } finally {
+            xz.close();
+        }
+    }
+
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_INT_DEC = 0x10;
+
+    /**
+     * Binary XML for {@code <manifest package versionCode="1"><uses-sdk targetSdkVersion="23"/>
+     * </manifest>}, the minimum {@link WearPackageManifest} needs.
+     */
+    private static byte[] buildManifest(String packageName) {
+        // Attribute names come first so the resource map can cover them.
+        final String[] strings = { "versionCode", "targetSdkVersion", "package", "manifest",
+                "uses-sdk", packageName };
+        final int[] resourceIds = { ATTR_VERSION_CODE, ATTR_TARGET_SDK_VERSION };
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeStringPool(body, strings);
+
+        ByteBuffer map = chunk(0x0180, 8, 8 + resourceIds.length * 4);
+        for (int id : resourceIds) {
+            map.putInt(id);
+        }
+        body.write(map.array(), 0, map.capacity());
+
+        writeStartElement(body, 3, new int[][] {
+                { 2, 5, TYPE_STRING, 5 },
+                { 0, -1, TYPE_INT_DEC, 1 },
+        });
+        writeStartElement(body, 4, new int[][] {
+                { 1, -1, TYPE_INT_DEC, 23 },
+        });
+        writeEndElement(body, 4);
+        writeEndElement(body, 3);
+
+        ByteBuffer header = chunk(0x0003, 8, 8 + body.size());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.array(), 0, 8);
+        out.write(body.toByteArray(), 0, body.size());
+        return out.toByteArray();
+    }
+
+    private static void writeStringPool(ByteArrayOutputStream out, String[] strings) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            offsets[i] = data.size();
+            String s = strings[i];
+            ByteBuffer b = ByteBuffer.allocate(4 + s.length() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            b.putShort((short) s.length());
+            for (int j = 0; j < s.length(); j++) {
+                b.putChar(s.charAt(j));
+            }
+            b.putShort((short) 0);
+            data.write(b.array(), 0, b.capacity());
+        }
+        while (data.size() % 4 != 0) {
+            data.write(0);
+        }
+        final int headerSize = 28;
+        final int stringsStart = headerSize + strings.length * 4;
+        ByteBuffer pool = chunk(0x0001, headerSize, stringsStart + data.size());
+        pool.putInt(strings.length);
+        pool.putInt(0); // styles
+        pool.putInt(0); // flags, UTF-16
+        pool.putInt(stringsStart);
+        pool.putInt(0); // styles start
+        for (int offset : offsets) {
+            pool.putInt(offset);
+        }
+        pool.put(data.toByteArray());
+        out.write(pool.array(), 0, pool.capacity());
+    }
+
+    /** @param attrs name index, raw value string index, data type, data */
+    private static void writeStartElement(ByteArrayOutputStream out, int name, int[][] attrs) {
+        ByteBuffer b = chunk(0x0102, 16, 16 + 20 + attrs.length * 20);
+        b.putInt(1); // line number
+        b.putInt(-1); // comment
+        b.putInt(-1); // namespace
+        b.putInt(name);
+        b.putShort((short) 20); // attribute start
+        b.putShort((short) 20); // attribute size
+        b.putShort((short) attrs.length);
+        b.putShort((short) 0); // id index
+        b.putShort((short) 0); // class index
+        b.putShort((short) 0); // style index
+        for (int[] attr : attrs) {
+            b.putInt(-1);
+            b.putInt(attr[0]);
+            b.putInt(attr[1]);
+            b.putShort((short) 8);
+            b.put((byte) 0);
+            b.put((byte) attr[2]);
+            b.putInt(attr[3]);
+        }
+        out.write(b.array(), 0, b.capacity());
+    }
+
+    private static void writeEndElement(ByteArrayOutputStream out, int name) {
+        ByteBuffer b = chunk(0x0103, 16, 24);
+        b.putInt(1); // line number
+        b.putInt(-1); // comment
+        b.putInt(-1); // namespace
+        b.putInt(name);
+        out.write(b.array(), 0, b.capacity());
+    }
+
+    /** @return a buffer of {@code size} bytes, positioned after the chunk header's size field */
+    private static ByteBuffer chunk(int type, int headerSize, int size) {
+        ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        b.putShort((short) type);
+        b.putShort((short) headerSize);
+        b.putInt(size);
+        return b;
+    }
+}
@@ -19,6 +19,9 @@ package com.android.packageinstaller.wear;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ResultReceiver;
+
+import java.util.ArrayList;
 
 /**
  * Installation Util that contains a list of parameters that are needed for
@@ -47,6 +50,18 @@ public class WearPackageArgs {
             "com.google.android.clockwork.EXTRA_KEY_SHOULD_CHECK_GMS_DEPENDENCY";
     private static final String KEY_SKIP_IF_LOWER_VERSION =
             "com.google.android.clockwork.EXTRA_SKIP_IF_LOWER_VERSION";
+    private static final String KEY_BATCH_ARGS =
+            "com.google.android.clockwork.EXTRA_BATCH_ARGS";
+    private static final String KEY_BATCH_INDEX =
+            "com.google.android.clockwork.EXTRA_BATCH_INDEX";
+    private static final String KEY_RESULT_RECEIVER =
+            "com.google.android.clockwork.EXTRA_RESULT_RECEIVER";
+    private static final String KEY_PRIORITY =
+            "com.google.android.clockwork.EXTRA_PRIORITY";
+    private static final String KEY_SAVED_MILLIS =
+            "com.android.packageinstaller.wear.SAVED_MILLIS";
+    private static final String KEY_INSTALLER_TOKEN =
+            "com.android.packageinstaller.wear.INSTALLER_TOKEN";
 
     public static String getPackageName(Bundle b) {
         return b.getString(KEY_PACKAGE_NAME);
@@ -61,6 +76,11 @@ public class WearPackageArgs {
         return b.getParcelable(KEY_ASSET_URI);
     }
 
+    public static Bundle setAssetUri(Bundle b, Uri assetUri) {
+        b.putParcelable(KEY_ASSET_URI, assetUri);
+        return b;
+    }
+
     public static Uri getPermUri(Bundle b) {
         return b.getParcelable(KEY_PERM_URI);
     }
@@ -85,6 +105,11 @@ public class WearPackageArgs {
         return b.getString(KEY_COMPRESSION_ALG);
     }
 
+    public static Bundle setCompressionAlg(Bundle b, String compressionAlg) {
+        b.putString(KEY_COMPRESSION_ALG, compressionAlg);
+        return b;
+    }
+
     public static int getStartId(Bundle b) {
         return b.getInt(KEY_START_ID);
     }
@@ -97,4 +122,79 @@ public class WearPackageArgs {
         b.putInt(KEY_START_ID, startId);
         return b;
     }
+
+    /**
+     * @return the per-package args of a batch request. Each one holds the same keys as a single
+     *         install request, and must at least have a package name and an asset URI.
+     */
+    public static ArrayList<Bundle> getBatchArgs(Bundle b) {
+        return b.getParcelableArrayList(KEY_BATCH_ARGS);
+    }
+
+    public static Bundle setBatchArgs(Bundle b, ArrayList<Bundle> batchArgs) {
+        b.putParcelableArrayList(KEY_BATCH_ARGS, batchArgs);
+        return b;
+    }
+
+    /**
+     * Build the args of package {@code index} of a batch request. Keys of the batch request
+     * (e.g. compression or companion versions) apply to every package unless overridden.
+     */
+    public static Bundle getBatchItemArgs(Bundle batch, int index) {
+        Bundle b = new Bundle(batch);
+        b.remove(KEY_BATCH_ARGS);
+        b.putAll(getBatchArgs(batch).get(index));
+        b.putInt(KEY_BATCH_INDEX, index);
+        return b;
+    }
+
+    /** @return the index within its batch request, or -1 if this is a single request */
+    public static int getBatchIndex(Bundle b) {
+        return b.getInt(KEY_BATCH_INDEX, -1);
+    }
+
+    public static ResultReceiver getResultReceiver(Bundle b) {
+        return b.getParcelable(KEY_RESULT_RECEIVER);
+    }
+
+    public static Bundle setResultReceiver(Bundle b, ResultReceiver receiver) {
+        b.putParcelable(KEY_RESULT_RECEIVER, receiver);
+        return b;
+    }
+
+    /**
+     * @return the priority of the request. Requests with a higher priority, e.g. installs the
+     *         user is waiting for, are started before background ones. Defaults to 0.
+     */
+    public static int getPriority(Bundle b) {
+        return b.getInt(KEY_PRIORITY, 0);
+    }
+
+    public static Bundle setPriority(Bundle b, int priority) {
+        b.putInt(KEY_PRIORITY, priority);
+        return b;
+    }
+
+    /** @return the install time saved by skipping an identical APK, 0 if it was installed */
+    public static long getSavedMillis(Bundle b) {
+        return b.getLong(KEY_SAVED_MILLIS);
+    }
+
+    public static Bundle setSavedMillis(Bundle b, long savedMillis) {
+        b.putLong(KEY_SAVED_MILLIS, savedMillis);
+        return b;
+    }
+
+    /**
+     * @return the token of the installer backend the request goes to, see
+     *         {@link PackageInstallerFactory#registerScopedInstaller}, or null for the real one
+     */
+    public static String getInstallerToken(Bundle b) {
+        return b.getString(KEY_INSTALLER_TOKEN);
+    }
+
+    public static Bundle setInstallerToken(Bundle b, String token) {
+        b.putString(KEY_INSTALLER_TOKEN, token);
+        return b;
+    }
 }
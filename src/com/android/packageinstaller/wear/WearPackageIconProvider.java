@@ -31,6 +31,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -48,6 +49,16 @@ public class WearPackageIconProvider extends ContentProvider {
     /** MIME types. */
     public static final String ICON_TYPE = "vnd.android.cursor.item/cw_package_icon";
 
+    /** Caller classes, see {@link #classifyCaller}. */
+    private static final int CALLER_ALLOWED = 1;
+    private static final int CALLER_NEEDS_URI_GRANT = 2;
+
+    /**
+     * Classification of the callers seen so far, by uid. Cleared whenever a package is added,
+     * removed or replaced, since that can change what a uid is.
+     */
+    private static final SparseIntArray sCallerClasses = new SparseIntArray();
+
     @Override
     public boolean onCreate() {
         return true;
@@ -85,11 +96,7 @@ public class WearPackageIconProvider extends ContentProvider {
         enforcePermissions(uri);
 
         if (ICON_TYPE.equals(getType(uri))) {
-            final File file = WearPackageUtil.getIconFile(
-                    this.getContext().getApplicationContext(), getPackageNameFromUri(uri));
-            if (file != null) {
-                file.delete();
-            }
+            WearIconCache.get(getContext()).removeIcon(getPackageNameFromUri(uri));
         }
 
         return 0;
@@ -110,8 +117,8 @@ public class WearPackageIconProvider extends ContentProvider {
         enforcePermissions(uri);
 
         if (ICON_TYPE.equals(getType(uri))) {
-            final File file = WearPackageUtil.getIconFile(
-                    this.getContext().getApplicationContext(), getPackageNameFromUri(uri));
+            final File file = WearIconCache.get(getContext())
+                    .getIconFile(getPackageNameFromUri(uri));
             if (file != null) {
                 return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
             }
@@ -147,13 +154,8 @@ public class WearPackageIconProvider extends ContentProvider {
         Context context = getContext();
         final int pid = Binder.getCallingPid();
         final int uid = Binder.getCallingUid();
-        final int myUid = android.os.Process.myUid();
 
-        if (uid == myUid || isSystemApp(context, pid)) {
-            return;
-        }
-
-        if (context.checkPermission(REQUIRED_PERMISSION, pid, uid) == PERMISSION_GRANTED) {
+        if (classifyCaller(context, pid, uid) == CALLER_ALLOWED) {
             return;
         }
 
@@ -168,6 +170,38 @@ public class WearPackageIconProvider extends ContentProvider {
                 + ", uid=" + uid);
     }
 
+    /**
+     * Whether the caller is this app, a system app or holds {@link #REQUIRED_PERMISSION}. This
+     * is worked out once per uid, as the home app fetches many icons in a row.
+     */
+    private int classifyCaller(Context context, int pid, int uid) {
+        synchronized (sCallerClasses) {
+            int callerClass = sCallerClasses.get(uid);
+            if (callerClass != 0) {
+                return callerClass;
+            }
+        }
+
+        final int callerClass;
+        if (uid == android.os.Process.myUid() || isSystemApp(context, pid)
+                || context.checkPermission(REQUIRED_PERMISSION, pid, uid) == PERMISSION_GRANTED) {
+            callerClass = CALLER_ALLOWED;
+        } else {
+            callerClass = CALLER_NEEDS_URI_GRANT;
+        }
+        synchronized (sCallerClasses) {
+            sCallerClasses.put(uid, callerClass);
+        }
+        return callerClass;
+    }
+
+    /** Forget how callers were classified. Called on every package change. */
+    public static void invalidateCallerCache() {
+        synchronized (sCallerClasses) {
+            sCallerClasses.clear();
+        }
+    }
+
     /**
      * From the pid of the calling process, figure out whether this is a system app or not. We do
      * this by checking the application information corresponding to the pid and then checking if
@@ -25,36 +25,41 @@ import android.content.pm.IPackageDeleteObserver;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageParser;
-import android.database.Cursor;
-import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
-import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.packageinstaller.DeviceUtils;
+import com.android.packageinstaller.InstalledPackageIndex;
 import com.android.packageinstaller.PackageUtil;
+import com.android.packageinstaller.StagingArea;
+import com.android.packageinstaller.SystemFeatures;
+import com.android.packageinstaller.permission.utils.IoUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Service that will install/uninstall packages. It will check for permissions and features as well.
@@ -77,6 +82,17 @@ import java.util.Set;
  *     -d package://com.google.android.gms \
  *     com.android.packageinstaller/com.android.packageinstaller.wear.WearPackageInstallerService
  *
+ *  Batch Install Action:
+ *  com.android.packageinstaller.wear.INSTALL_PACKAGES takes a list of per-package bundles in
+ *  com.google.android.clockwork.EXTRA_BATCH_ARGS (see {@link WearPackageArgs#getBatchArgs}) and
+ *  reports the outcome of all of them through the ResultReceiver in
+ *  com.google.android.clockwork.EXTRA_RESULT_RECEIVER (see {@link InstallBatch}).
+ *
+ *  Queueing:
+ *  Requests with a higher --ei com.google.android.clockwork.EXTRA_PRIORITY start first. A new
+ *  install of a package supersedes the installs of it that are still queued or copying, see
+ *  {@link PackageTaskExecutor}.
+ *
  *  Retry GMS:
  *  adb shell am startservice -a com.android.packageinstaller.wear.RETRY_GMS \
  *     com.android.packageinstaller/com.android.packageinstaller.wear.WearPackageInstallerService
@@ -93,30 +109,25 @@ public class WearPackageInstallerService extends Service {
     private static final String KEY_HAS_LAUNCHER =
             "com.google.android.clockwork.EXTRA_HAS_LAUNCHER";
 
+    public static final String ACTION_INSTALL_PACKAGES =
+            "com.android.packageinstaller.wear.INSTALL_PACKAGES";
+
     private static final String HOME_APP_PACKAGE_NAME = "com.google.android.wearable.app";
     private static final String SHOW_PERMS_SERVICE_CLASS =
             "com.google.android.clockwork.packagemanager.ShowPermsService";
 
-    private final int START_INSTALL = 1;
-    private final int START_UNINSTALL = 2;
+    /** Installs of different packages run in parallel on up to this many threads. */
+    private static final int MAX_INSTALL_THREADS = 3;
 
-    private final class ServiceHandler extends Handler {
-        public ServiceHandler(Looper looper) {
-            super(looper);
-        }
+    private PackageTaskExecutor mPackageExecutor;
+    private Handler mMainHandler;
 
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case START_INSTALL:
-                    installPackage(msg.getData());
-                    break;
-                case START_UNINSTALL:
-                    uninstallPackage(msg.getData());
-                    break;
-            }
-        }
-    }
-    private ServiceHandler mServiceHandler;
+    /** Requests that have been queued but not finished yet. Only accessed on the main thread. */
+    private int mPendingRequests;
+    private int mLastStartId;
+
+    /** Batch requests that are in progress, by start id. */
+    private final Map<Integer, InstallBatch> mBatches = new ConcurrentHashMap<>();
 
     private static volatile PowerManager.WakeLock lockStatic = null;
 
@@ -128,11 +139,32 @@ public class WearPackageInstallerService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        HandlerThread thread = new HandlerThread("PackageInstallerThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
+        mPackageExecutor = new PackageTaskExecutor(MAX_INSTALL_THREADS, "PackageInstallerThread");
+        mMainHandler = new Handler(Looper.getMainLooper());
+        // Snapshot the system features up front, the feature checks then don't need binder calls.
+        SystemFeatures.get(this).load();
+        InstalledPackageIndex.get(this).warmUp();
+        if (DeviceUtils.isWear(this)) {
+            PackageChangeReceiver.enable(this);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        mPackageExecutor.shutdown();
+        super.onDestroy();
+    }
 
-        mServiceHandler = new ServiceHandler(thread.getLooper());
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0
+                && WearInstallLoadTest.DUMP_COMMAND.equals(args[0])) {
+            WearInstallLoadTest.dump(this, writer, args);
+            return;
+        }
+        InstallStats.get().dump(writer);
+        StagingArea.get(this).dump(writer);
+        WearInstallLoadTest.dump(this, writer, args);
     }
 
     @Override
@@ -151,6 +183,11 @@ public class WearPackageInstallerService extends Service {
             Log.d(TAG, "Got install/uninstall request " + intent);
         }
 
+        if (ACTION_INSTALL_PACKAGES.equals(intent.getAction())) {
+            startBatchInstall(intent, startId);
+            return START_NOT_STICKY;
+        }
+
         Uri packageUri = intent.getData();
         if (packageUri == null) {
             Log.e(TAG, "No package URI in intent");
@@ -162,30 +199,113 @@ public class WearPackageInstallerService extends Service {
             return START_NOT_STICKY;
         }
 
-        PowerManager.WakeLock lock = getLock(this.getApplicationContext());
-        if (!lock.isHeld()) {
-            lock.acquire();
-        }
-
         Bundle intentBundle = intent.getExtras();
         if (intentBundle == null) {
             intentBundle = new Bundle();
         }
         WearPackageArgs.setStartId(intentBundle, startId);
         WearPackageArgs.setPackageName(intentBundle, packageName);
+        final Bundle argsBundle = intentBundle;
+        RequestTask task;
         if (Intent.ACTION_INSTALL_PACKAGE.equals(intent.getAction())) {
-            Message msg = mServiceHandler.obtainMessage(START_INSTALL);
-            msg.setData(intentBundle);
-            mServiceHandler.sendMessage(msg);
+            task = new RequestTask(argsBundle, true);
         } else if (Intent.ACTION_UNINSTALL_PACKAGE.equals(intent.getAction())) {
-            Message msg = mServiceHandler.obtainMessage(START_UNINSTALL);
-            msg.setData(intentBundle);
-            mServiceHandler.sendMessage(msg);
+            task = new RequestTask(argsBundle, false);
+        } else {
+            Log.w(TAG, "Unknown action " + intent.getAction());
+            return START_NOT_STICKY;
         }
+
+        // Every queued request holds the (reference counted) wakelock until it is finished.
+        getLock(this.getApplicationContext()).acquire();
+        mPendingRequests++;
+        mLastStartId = startId;
+        mPackageExecutor.execute(task);
         return START_NOT_STICKY;
     }
 
-    private void installPackage(Bundle argsBundle) {
+    /**
+     * A request queued on {@link #mPackageExecutor}. Installs are coalescable: a newer install
+     * of the same package supersedes this one.
+     */
+    private class RequestTask extends PackageTaskExecutor.Task {
+        private final Bundle mArgsBundle;
+        private final boolean mInstall;
+
+        private RequestTask(Bundle argsBundle, boolean install) {
+            super(WearPackageArgs.getPackageName(argsBundle),
+                    WearPackageArgs.getPriority(argsBundle), install);
+            mArgsBundle = argsBundle;
+            mInstall = install;
+        }
+
+        @Override
+        public void run() {
+            if (mInstall) {
+                installPackage(mArgsBundle, this);
+            } else {
+                uninstallPackage(mArgsBundle);
+            }
+        }
+
+        @Override
+        protected void onDropped() {
+            finishRequest(mArgsBundle, getLock(getApplicationContext()),
+                    InstallerConstants.ERROR_INSTALL_SUPERSEDED);
+        }
+    }
+
+    /**
+     * Queue every package of a batch request. The whole batch counts as a single request for the
+     * wakelock and the service lifetime. Packages are spread over the install threads, so one
+     * package is decompressed and copied while the previous one is being committed.
+     */
+    private void startBatchInstall(Intent intent, int startId) {
+        Bundle batchBundle = intent.getExtras();
+        if (batchBundle == null) {
+            batchBundle = new Bundle();
+        }
+        WearPackageArgs.setStartId(batchBundle, startId);
+        // Even a request that is rejected outright must finish, for the service to stop.
+        final PowerManager.WakeLock lock = getLock(this.getApplicationContext());
+        lock.acquire();
+        mPendingRequests++;
+        mLastStartId = startId;
+
+        List<Bundle> items = WearPackageArgs.getBatchArgs(batchBundle);
+        if (items == null || items.isEmpty()) {
+            Log.e(TAG, "No packages in batch request");
+            finishRequest(batchBundle, lock, InstallerConstants.ERROR_INSTALL_INVALID_REQUEST);
+            return;
+        }
+        final Bundle[] itemArgs = new Bundle[items.size()];
+        final String[] packageNames = new String[items.size()];
+        boolean valid = true;
+        for (int i = 0; i < itemArgs.length; i++) {
+            itemArgs[i] = WearPackageArgs.getBatchItemArgs(batchBundle, i);
+            packageNames[i] = WearPackageArgs.getPackageName(itemArgs[i]);
+            if (packageNames[i] == null || WearPackageArgs.getAssetUri(itemArgs[i]) == null) {
+                Log.e(TAG, "Batch entry " + i + " needs a package name and an asset URI");
+                valid = false;
+            }
+        }
+        mBatches.put(startId, new InstallBatch(WearPackageArgs.getResultReceiver(batchBundle),
+                packageNames));
+
+        if (!valid) {
+            // Fail every package, the caller gets the result of the batch as usual.
+            for (int i = 0; i < itemArgs.length; i++) {
+                finishRequest(itemArgs[i], lock, InstallerConstants.ERROR_INSTALL_INVALID_REQUEST);
+            }
+            return;
+        }
+        Log.i(TAG, "Queueing batch install of " + itemArgs.length + " packages");
+        for (int i = 0; i < itemArgs.length; i++) {
+            mPackageExecutor.execute(new RequestTask(itemArgs[i], true));
+        }
+    }
+
+    private void installPackage(Bundle argsBundle, PackageTaskExecutor.Task task) {
         int startId = WearPackageArgs.getStartId(argsBundle);
         final String packageName = WearPackageArgs.getPackageName(argsBundle);
         final Uri assetUri = WearPackageArgs.getAssetUri(argsBundle);
@@ -205,130 +325,91 @@ public class WearPackageInstallerService extends Service {
                     companionSdkVersion + ", companionDeviceVersion: " + companionDeviceVersion +
                     ", skipIfLowerVersion: " + skipIfLowerVersion);
         }
+        final int batchIndex = WearPackageArgs.getBatchIndex(argsBundle);
+        if (batchIndex >= 0) {
+            mBatches.get(startId).onItemStarted(batchIndex);
+        }
         final PackageManager pm = getPackageManager();
-        File tempFile = null;
         int installFlags = 0;
         PowerManager.WakeLock lock = getLock(this.getApplicationContext());
+        if (task.isCancelled()) {
+            Log.i(TAG, "Install of " + packageName + " was superseded before it started");
+            finishService(argsBundle, lock, InstallerConstants.ERROR_INSTALL_SUPERSEDED);
+            return;
+        }
+        final InstallStats.Trace trace = InstallStats.get().newTrace(packageName);
         boolean messageSent = false;
+        // What is reported if the request isn't sent.
+        int failure = InstallerConstants.ERROR_COULD_NOT_GET_FD;
+        ParcelFileDescriptor parcelFd = null;
         try {
             PackageInfo existingPkgInfo = null;
-            try {
-                existingPkgInfo = pm.getPackageInfo(packageName,
-                        PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_PERMISSIONS);
-                if(existingPkgInfo != null) {
-                    installFlags |= PackageManager.INSTALL_REPLACE_EXISTING;
+            // The permissions of a new package aren't needed, skip fetching them.
+            if (InstalledPackageIndex.get(this).get(packageName) != null) {
+                try {
+                    existingPkgInfo = pm.getPackageInfo(packageName,
+                            PackageManager.GET_UNINSTALLED_PACKAGES
+                                    | PackageManager.GET_PERMISSIONS);
+                    if(existingPkgInfo != null) {
+                        installFlags |= PackageManager.INSTALL_REPLACE_EXISTING;
+                    }
+                } catch (PackageManager.NameNotFoundException e) {
+                    // Ignore this exception. We could not find the package, will treat as a new
+                    // installation.
                 }
-            } catch (PackageManager.NameNotFoundException e) {
-                // Ignore this exception. We could not find the package, will treat as a new
-                // installation.
             }
             if((installFlags & PackageManager.INSTALL_REPLACE_EXISTING )!= 0) {
                 if (Log.isLoggable(TAG, Log.DEBUG)) {
                     Log.d(TAG, "Replacing package:" + packageName);
                 }
             }
-            // TODO(28021618): This was left as a temp file due to the fact that this code is being
-            //       deprecated and that we need the bare minimum to continue working moving forward
-            //       If this code is used as reference, this permission logic might want to be
-            //       reworked to use a stream instead of a file so that we don't need to write a
-            //       file at all.  Note that there might be some trickiness with opening a stream
-            //       for multiple users.
-            ParcelFileDescriptor parcelFd = getContentResolver()
-                    .openFileDescriptor(assetUri, "r");
-            tempFile = WearPackageUtil.getFileFromFd(WearPackageInstallerService.this,
-                    parcelFd, packageName, compressionAlg);
-            if (tempFile == null) {
-                Log.e(TAG, "Could not create a temp file from FD for " + packageName);
-                return;
-            }
-            PackageParser.Package pkg = PackageUtil.getPackageInfo(tempFile);
-            if (pkg == null) {
-                Log.e(TAG, "Could not parse apk information for " + packageName);
+            final PackageInstallerBackend installer = PackageInstallerFactory.getPackageInstaller(
+                    this, WearPackageArgs.getInstallerToken(argsBundle));
+            if (installer == null) {
+                Log.e(TAG, "Installer of the request for " + packageName + " is gone");
+                failure = InstallerConstants.ERROR_INSTALL_NO_INSTALLER;
                 return;
             }
-
-            if (!pkg.packageName.equals(packageName)) {
-                Log.e(TAG, "Wearable Package Name has to match what is provided for " +
-                        packageName);
-                return;
+            if (checkPerms && permUri != null) {
+                // Read the phone's grants while the APK is being decompressed.
+                PhonePermissionCache.get(this).prefetch(permUri);
             }
-
-            List<String> wearablePerms = pkg.requestedPermissions;
-
-            // Log if the installed pkg has a higher version number.
-            if (existingPkgInfo != null) {
-                if (existingPkgInfo.versionCode == pkg.mVersionCode) {
-                    if (skipIfSameVersion) {
-                        Log.w(TAG, "Version number (" + pkg.mVersionCode +
-                                ") of new app is equal to existing app for " + packageName +
-                                "; not installing due to versionCheck");
-                        return;
-                    } else {
-                        Log.w(TAG, "Version number of new app (" + pkg.mVersionCode +
-                                ") is equal to existing app for " + packageName);
-                    }
-                } else if (existingPkgInfo.versionCode > pkg.mVersionCode) {
-                    if (skipIfLowerVersion) {
-                        // Starting in Feldspar, we are not going to allow downgrades of any app.
-                        Log.w(TAG, "Version number of new app (" + pkg.mVersionCode +
-                                ") is lower than existing app ( " + existingPkgInfo.versionCode +
-                                ") for " + packageName + "; not installing due to versionCheck");
-                        return;
-                    } else {
-                        Log.w(TAG, "Version number of new app (" + pkg.mVersionCode +
-                                ") is lower than existing app ( " + existingPkgInfo.versionCode +
-                                ") for " + packageName);
-                    }
-                }
-
-                // Following the Android Phone model, we should only check for permissions for any
-                // newly defined perms.
-                if (existingPkgInfo.requestedPermissions != null) {
-                    for (int i = 0; i < existingPkgInfo.requestedPermissions.length; ++i) {
-                        // If the permission is granted, then we will not ask to request it again.
-                        if ((existingPkgInfo.requestedPermissionsFlags[i] &
-                                PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
-                            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                                Log.d(TAG, existingPkgInfo.requestedPermissions[i] +
-                                        " is already granted for " + packageName);
-                            }
-                            wearablePerms.remove(existingPkgInfo.requestedPermissions[i]);
-                        }
-                    }
-                }
+            // Decompress the asset once, straight into the install session. The manifest is
+            // sniffed from the stream on its way through, and the package is checked against it
+            // before the session is committed.
+            trace.begin(InstallStats.STAGE_OPEN_FD);
+            parcelFd = getContentResolver()
+                    .openFileDescriptor(assetUri, "r");
+            trace.end(InstallStats.STAGE_OPEN_FD);
+            if (parcelFd != null) {
+                trace.setBytesIn(parcelFd.getStatSize());
             }
-
-            // Check permissions on both the new wearable package and also on the already installed
-            // wearable package.
-            // If the app is targeting API level 23, we will also start a service in ClockworkHome
-            // which will ultimately prompt the user to accept/reject permissions.
-            if (checkPerms && !checkPermissions(pkg, companionSdkVersion, companionDeviceVersion,
-                    permUri, wearablePerms, tempFile)) {
-                Log.w(TAG, "Wearable does not have enough permissions.");
+            // Read before the stream is opened, which may move the fd offset.
+            final long apkSize = WearPackageUtil.getUncompressedSize(parcelFd, compressionAlg);
+            InputStream apkStream = WearPackageUtil.getDecompressedInputStream(parcelFd,
+                    compressionAlg);
+            if (apkStream == null) {
+                Log.e(TAG, "Could not open a stream from FD for " + packageName);
                 return;
             }
-
-            // Check that the wearable has all the features.
-            boolean hasAllFeatures = true;
-            if (pkg.reqFeatures != null) {
-                for (FeatureInfo feature : pkg.reqFeatures) {
-                    if (feature.name != null && !pm.hasSystemFeature(feature.name) &&
-                            (feature.flags & FeatureInfo.FLAG_REQUIRED) != 0) {
-                        Log.e(TAG, "Wearable does not have required feature: " + feature +
-                                " for " + packageName);
-                        hasAllFeatures = false;
-                    }
-                }
-            }
-
-            if (!hasAllFeatures) {
-                return;
+            apkStream = new InstallStats.TimedInputStream(apkStream, trace,
+                    InstallStats.STAGE_DECOMPRESS);
+            // The digest is used to skip APKs that are identical to the installed one.
+            MessageDigest digest = null;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+                apkStream = new DigestInputStream(apkStream, digest);
+            } catch (NoSuchAlgorithmException e) {
+                Log.w(TAG, "No SHA-256, identical APKs will be installed again");
             }
-
-            // Finally install the package.
-            ParcelFileDescriptor fd = getContentResolver().openFileDescriptor(assetUri, "r");
-            PackageInstallerFactory.getPackageInstaller(this).install(packageName, fd,
-                    new PackageInstallListener(this, lock, startId, packageName));
+            // A newer request for the package stops the copy, see PackageTaskExecutor.
+            apkStream = new PackageTaskExecutor.CancellableInputStream(apkStream, task);
+            StagedPackageChecker checker = new StagedPackageChecker(argsBundle, existingPkgInfo,
+                    digest, task, trace);
+            ManifestSniffingInputStream sniffingStream =
+                    new ManifestSniffingInputStream(apkStream, checker);
+            installer.install(packageName, sniffingStream, apkSize, checker,
+                    new PackageInstallListener(this, lock, argsBundle, checker, trace), trace);
 
             messageSent = true;
             Log.i(TAG, "Sent installation request for " + packageName);
@@ -338,12 +419,127 @@ public class WearPackageInstallerService extends Service {
             if (!messageSent) {
                 // Some error happened. If the message has been sent, we can wait for the observer
                 // which will finish the service.
-                if (tempFile != null) {
-                    tempFile.delete();
+                // The stream, if any, was never handed over; close what it would have.
+                IoUtils.closeQuietly(parcelFd);
+                trace.finish(failure);
+                finishService(argsBundle, lock, failure);
+            }
+        }
+    }
+
+    /**
+     * Checks that only need the manifest: the name must match, the version must pass the version
+     * checks and the features must be available. These are cheap, and run as soon as the manifest
+     * has been sniffed from the stream.
+     *
+     * @return null if the package passes, or why it does not
+     */
+    private String checkManifest(Bundle argsBundle, PackageInfo existingPkgInfo,
+            WearPackageManifest manifest, InstallStats.Trace trace) {
+        final String packageName = WearPackageArgs.getPackageName(argsBundle);
+        boolean skipIfSameVersion = WearPackageArgs.skipIfSameVersion(argsBundle);
+        boolean skipIfLowerVersion = WearPackageArgs.skipIfLowerVersion(argsBundle);
+
+        if (!manifest.getPackageName().equals(packageName)) {
+            Log.e(TAG, "Wearable Package Name has to match what is provided for " +
+                    packageName);
+            return "package name is " + manifest.getPackageName();
+        }
+
+        final int versionCode = manifest.getVersionCode();
+
+        // Log if the installed pkg has a higher version number.
+        if (existingPkgInfo != null) {
+            if (existingPkgInfo.versionCode == versionCode) {
+                if (skipIfSameVersion) {
+                    Log.w(TAG, "Version number (" + versionCode +
+                            ") of new app is equal to existing app for " + packageName +
+                            "; not installing due to versionCheck");
+                    return "same version";
+                } else {
+                    Log.w(TAG, "Version number of new app (" + versionCode +
+                            ") is equal to existing app for " + packageName);
+                }
+            } else if (existingPkgInfo.versionCode > versionCode) {
+                if (skipIfLowerVersion) {
+                    // Starting in Feldspar, we are not going to allow downgrades of any app.
+                    Log.w(TAG, "Version number of new app (" + versionCode +
+                            ") is lower than existing app ( " + existingPkgInfo.versionCode +
+                            ") for " + packageName + "; not installing due to versionCheck");
+                    return "lower version";
+                } else {
+                    Log.w(TAG, "Version number of new app (" + versionCode +
+                            ") is lower than existing app ( " + existingPkgInfo.versionCode +
+                            ") for " + packageName);
+                }
+            }
+        }
+
+        // Check that the wearable has all the features.
+        trace.begin(InstallStats.STAGE_FEATURES);
+        boolean hasAllFeatures = true;
+        final SystemFeatures features = SystemFeatures.get(this);
+        for (FeatureInfo feature : manifest.getReqFeatures()) {
+            if (feature.name != null && !features.hasSystemFeature(feature.name) &&
+                    (feature.flags & FeatureInfo.FLAG_REQUIRED) != 0) {
+                Log.e(TAG, "Wearable does not have required feature: " + feature +
+                        " for " + packageName);
+                hasAllFeatures = false;
+            }
+        }
+        trace.end(InstallStats.STAGE_FEATURES);
+
+        return hasAllFeatures ? null : "missing required features";
+    }
+
+    /**
+     * Check that the staged package can be installed: it must pass {@link #checkManifest} and
+     * the permissions must be granted.
+     *
+     * @param manifestChecked Whether {@link #checkManifest} already passed while streaming
+     * @return true if the package should be committed
+     */
+    private boolean checkInstallable(Bundle argsBundle, PackageInfo existingPkgInfo,
+            WearPackageManifest manifest, boolean manifestChecked, StagedPackageChecker staged) {
+        final String packageName = WearPackageArgs.getPackageName(argsBundle);
+        final Uri permUri = WearPackageArgs.getPermUri(argsBundle);
+        boolean checkPerms = WearPackageArgs.checkPerms(argsBundle);
+        int companionSdkVersion = WearPackageArgs.getCompanionSdkVersion(argsBundle);
+        int companionDeviceVersion = WearPackageArgs.getCompanionDeviceVersion(argsBundle);
+
+        if (!manifestChecked && checkManifest(argsBundle, existingPkgInfo, manifest,
+                staged.getTrace()) != null) {
+            return false;
+        }
+
+        List<String> wearablePerms = manifest.getRequestedPermissions();
+
+        // Following the Android Phone model, we should only check for permissions for any
+        // newly defined perms.
+        if (existingPkgInfo != null && existingPkgInfo.requestedPermissions != null) {
+            for (int i = 0; i < existingPkgInfo.requestedPermissions.length; ++i) {
+                // If the permission is granted, then we will not ask to request it again.
+                if ((existingPkgInfo.requestedPermissionsFlags[i] &
+                        PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, existingPkgInfo.requestedPermissions[i] +
+                                " is already granted for " + packageName);
+                    }
+                    wearablePerms.remove(existingPkgInfo.requestedPermissions[i]);
                 }
-                finishService(lock, startId);
             }
         }
+
+        // Check permissions on both the new wearable package and also on the already installed
+        // wearable package.
+        // If the app is targeting API level 23, we will also start a service in ClockworkHome
+        // which will ultimately prompt the user to accept/reject permissions.
+        if (checkPerms && !checkPermissions(manifest, companionSdkVersion,
+                companionDeviceVersion, permUri, wearablePerms, staged)) {
+            Log.w(TAG, "Wearable does not have enough permissions.");
+            return false;
+        }
+        return true;
     }
 
     // TODO: This was left using the old PackageManager API due to the fact that this code is being
@@ -351,20 +547,19 @@ public class WearPackageInstallerService extends Service {
     //       If this code is used as reference, this logic should be reworked to use the new
     //       PackageInstaller APIs similar to how installPackage was reworked
     private void uninstallPackage(Bundle argsBundle) {
-        int startId = WearPackageArgs.getStartId(argsBundle);
         final String packageName = WearPackageArgs.getPackageName(argsBundle);
 
         final PackageManager pm = getPackageManager();
         PowerManager.WakeLock lock = getLock(this.getApplicationContext());
-        pm.deletePackage(packageName, new PackageDeleteObserver(lock, startId),
+        pm.deletePackage(packageName, new PackageDeleteObserver(argsBundle, lock),
                 PackageManager.DELETE_ALL_USERS);
         startPermsServiceForUninstall(packageName);
         Log.i(TAG, "Sent delete request for " + packageName);
     }
 
-    private boolean checkPermissions(PackageParser.Package pkg, int companionSdkVersion,
+    private boolean checkPermissions(WearPackageManifest manifest, int companionSdkVersion,
             int companionDeviceVersion, Uri permUri, List<String> wearablePermissions,
-            File apkFile) {
+            StagedPackageChecker staged) {
         // If the Wear App is targeted for M-release, since the permission model has been changed,
         // permissions may not be granted on the phone yet. We need a different flow for user to
         // accept these permissions.
@@ -382,14 +577,17 @@ public class WearPackageInstallerService extends Service {
         // - Case 4: We did not get Companion App's/Device's version, always show dialog to user to
         // accept permissions. (This happens if the AndroidWear Companion App is really old).
         boolean isWearTargetingM =
-                pkg.applicationInfo.targetSdkVersion > Build.VERSION_CODES.LOLLIPOP_MR1;
+                manifest.getTargetSdkVersion() > Build.VERSION_CODES.LOLLIPOP_MR1;
         if (isWearTargetingM) { // Case 1
             // Install the app if Wear App is ready for the new perms model.
             return true;
         }
 
-        List<String> unavailableWearablePerms = getWearPermsNotGrantedOnPhone(pkg.packageName,
+        staged.getTrace().begin(InstallStats.STAGE_PERMISSIONS);
+        List<String> unavailableWearablePerms = getWearPermsNotGrantedOnPhone(
+                manifest.getPackageName(),
                 permUri, wearablePermissions);
+        staged.getTrace().end(InstallStats.STAGE_PERMISSIONS);
         if (unavailableWearablePerms == null) {
             return false;
         }
@@ -409,7 +607,14 @@ public class WearPackageInstallerService extends Service {
         }
         if ((isCompanionTargetingM && isCompanionRunningM) || // Case 2
                 companionSdkVersion == 0 || companionDeviceVersion == 0) { // Case 4
-            startPermsServiceForInstall(pkg, apkFile, unavailableWearablePerms);
+            // The prompt needs the label and icon from the APK's resources, so this is the one
+            // case where we need the staged APK as a file.
+            PackageParser.Package pkg = staged.getParsedPackage();
+            if (pkg == null) {
+                Log.e(TAG, "Could not parse apk information for " + manifest.getPackageName());
+            } else {
+                startPermsServiceForInstall(pkg, staged.getStagedFile(), unavailableWearablePerms);
+            }
         }
 
         // Case 3a-3c.
@@ -417,8 +622,8 @@ public class WearPackageInstallerService extends Service {
     }
 
     /**
-     * Given a {@string packageName} corresponding to a phone app, query the provider for all the
-     * perms that are granted.
+     * Given a {@string packageName} corresponding to a phone app, look up all the perms that are
+     * granted, see {@link PhonePermissionCache}.
      * @return null if there is an error retrieving this info
      *         else, a list of all the wearable perms that are not in the list of granted perms of
      * the phone.
@@ -429,36 +634,16 @@ public class WearPackageInstallerService extends Service {
             Log.e(TAG, "Permission URI is null");
             return null;
         }
-        Cursor permCursor = getContentResolver().query(permUri, null, null, null, null);
-        if (permCursor == null) {
-            Log.e(TAG, "Could not get the cursor for the permissions");
+        PhonePermissionCache.Grants grants = PhonePermissionCache.get(this).getGrants(permUri);
+        if (grants == null) {
             return null;
         }
 
-        Set<String> grantedPerms = new HashSet<>();
-        Set<String> ungrantedPerms = new HashSet<>();
-        while(permCursor.moveToNext()) {
-            // Make sure that the MatrixCursor returned by the ContentProvider has 2 columns and
-            // verify their types.
-            if (permCursor.getColumnCount() == 2
-                    && Cursor.FIELD_TYPE_STRING == permCursor.getType(0)
-                    && Cursor.FIELD_TYPE_INTEGER == permCursor.getType(1)) {
-                String perm = permCursor.getString(0);
-                Integer granted = permCursor.getInt(1);
-                if (granted == 1) {
-                    grantedPerms.add(perm);
-                } else {
-                    ungrantedPerms.add(perm);
-                }
-            }
-        }
-        permCursor.close();
-
         ArrayList<String> unavailableWearablePerms = new ArrayList<>();
         for (String wearablePerm : wearablePermissions) {
-            if (!grantedPerms.contains(wearablePerm)) {
+            if (!grants.isGranted(wearablePerm)) {
                 unavailableWearablePerms.add(wearablePerm);
-                if (!ungrantedPerms.contains(wearablePerm)) {
+                if (!grants.isDeclared(wearablePerm)) {
                     // This is an error condition. This means that the wearable has permissions that
                     // are not even declared in its host app. This is a developer error.
                     Log.e(TAG, "Wearable " + packageName + " has a permission \"" + wearablePerm
@@ -472,11 +657,47 @@ public class WearPackageInstallerService extends Service {
         return unavailableWearablePerms;
     }
 
-    private void finishService(PowerManager.WakeLock lock, int startId) {
+    /**
+     * Called exactly once for every package queued by {@link #onStartCommand}, from any thread.
+     * Lets the next request for the same package run, and stops the service once no requests
+     * are left.
+     *
+     * @param status {@link InstallerConstants#STATUS_SUCCESS} or an error code, for batches
+     */
+    private void finishService(Bundle argsBundle, PowerManager.WakeLock lock, int status) {
+        final String packageName = WearPackageArgs.getPackageName(argsBundle);
+        mPackageExecutor.finished(packageName);
+        // The package may have changed, don't wait for the broadcast to say so.
+        InstalledPackageIndex.get(this).invalidate(packageName);
+        finishRequest(argsBundle, lock, status);
+    }
+
+    /**
+     * Like {@link #finishService}, for requests that never ran because they were superseded,
+     * and so never kept their package busy.
+     */
+    private void finishRequest(Bundle argsBundle, PowerManager.WakeLock lock, int status) {
+        final int batchIndex = WearPackageArgs.getBatchIndex(argsBundle);
+        if (batchIndex >= 0) {
+            // A batch is one request, which finishes with its last package.
+            final int startId = WearPackageArgs.getStartId(argsBundle);
+            if (!mBatches.get(startId).onItemFinished(batchIndex, status,
+                    WearPackageArgs.getSavedMillis(argsBundle))) {
+                return;
+            }
+            mBatches.remove(startId);
+        }
         if (lock.isHeld()) {
             lock.release();
         }
-        stopSelf(startId);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (--mPendingRequests == 0) {
+                    stopSelf(mLastStartId);
+                }
+            }
+        });
     }
 
     private synchronized PowerManager.WakeLock getLock(Context context) {
@@ -536,89 +757,242 @@ public class WearPackageInstallerService extends Service {
             Log.e(TAG, "Drawable is not a BitmapDrawable for " + packageName);
             return null;
         }
-        File iconFile = WearPackageUtil.getIconFile(this, packageName);
+        // Encoded in the background; the provider waits for it if asked before it's done.
+        return WearIconCache.get(this).putIcon(packageName, ((BitmapDrawable) d).getBitmap());
+    }
 
-        if (iconFile == null) {
-            Log.e(TAG, "Could not get icon file for " + packageName);
-            return null;
+    /**
+     * Runs {@link #checkManifest} as soon as the manifest is sniffed from the stream, aborting
+     * the copy if it fails, and {@link #checkInstallable} once the APK has been staged in the
+     * install session. The sniffed manifest is used when available; otherwise, and whenever
+     * resources are needed, the staged APK is copied out of the session and parsed.
+     */
+    private class StagedPackageChecker implements PackageInstallerBackend.StagedPackageVerifier,
+            ManifestSniffingInputStream.Listener {
+        private final Bundle mArgsBundle;
+        private final PackageInfo mExistingPkgInfo;
+        private final MessageDigest mDigest;
+        private final PackageTaskExecutor.Task mTask;
+        private final InstallStats.Trace mTrace;
+        private byte[] mApkDigest;
+        private PackageInstallerBackend.StagedPackage mStaged;
+        private boolean mCopiedOut;
+        private File mStagedFile;
+        private PackageParser.Package mParsedPkg;
+        /** The manifest sniffed from the stream, which passed {@link #checkManifest}. */
+        private WearPackageManifest mSniffedManifest;
+        private ManifestSniffingInputStream mSniffer;
+
+        /**
+         * @param digest Fed with the APK as it is streamed into the session, can be null
+         * @param task The install request, the package is not committed once it is cancelled
+         */
+        private StagedPackageChecker(Bundle argsBundle, PackageInfo existingPkgInfo,
+                MessageDigest digest, PackageTaskExecutor.Task task, InstallStats.Trace trace) {
+            mArgsBundle = argsBundle;
+            mExistingPkgInfo = existingPkgInfo;
+            mDigest = digest;
+            mTask = task;
+            mTrace = trace;
         }
 
-        FileOutputStream fos = null;
-        try {
-            // Convert bitmap to byte array
-            Bitmap bitmap = ((BitmapDrawable) d).getBitmap();
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 0, bos);
-
-            // Write the bytes into the file
-            fos = new FileOutputStream(iconFile);
-            fos.write(bos.toByteArray());
-            fos.flush();
-
-            return WearPackageIconProvider.getUriForPackage(packageName);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not convert drawable to icon file for package " + packageName, e);
-            return null;
-        } finally {
-            if (fos != null) {
+        @Override
+        public String onManifestSniffed(ManifestSniffingInputStream sniffer,
+                WearPackageManifest manifest, long parseNanos) {
+            mTrace.add(InstallStats.STAGE_MANIFEST, parseNanos);
+            String reason = checkManifest(mArgsBundle, mExistingPkgInfo, manifest, mTrace);
+            if (reason != null) {
+                Log.w(TAG, "Rejecting " + WearPackageArgs.getPackageName(mArgsBundle)
+                        + " while streaming: " + reason);
+            } else {
+                mSniffedManifest = manifest;
+                mSniffer = sniffer;
+            }
+            return reason;
+        }
+
+        @Override
+        public int verifyStagedPackage(PackageInstallerBackend.StagedPackage staged) {
+            mStaged = staged;
+            final String packageName = WearPackageArgs.getPackageName(mArgsBundle);
+            if (isSuperseded()) {
+                return InstallerConstants.ERROR_INSTALL_SUPERSEDED;
+            }
+            if (mDigest != null) {
+                mApkDigest = mDigest.digest();
+                ApkDigestIndex.Entry installed =
+                        ApkDigestIndex.get(WearPackageInstallerService.this)
+                                .findIdentical(mExistingPkgInfo, mApkDigest);
+                if (installed != null) {
+                    Log.i(TAG, "Installed " + packageName + " is identical, skipping install "
+                            + "(saves about " + installed.installMillis + " ms)");
+                    WearPackageArgs.setSavedMillis(mArgsBundle, installed.installMillis);
+                    return InstallerConstants.STATUS_ALREADY_INSTALLED;
+                }
+            }
+            try {
+                if (mSniffedManifest != null && !isSniffedManifestInstalled()) {
+                    // A decoy entry, the checks done while streaming don't count.
+                    Log.w(TAG, "Sniffed manifest of " + packageName + " is not the one in the "
+                            + "central directory");
+                    mSniffedManifest = null;
+                }
+                WearPackageManifest manifest = mSniffedManifest;
+                if (manifest == null) {
+                    Log.i(TAG, "Manifest of " + packageName + " was not sniffed from the " +
+                            "stream, parsing the staged apk");
+                    mTrace.begin(InstallStats.STAGE_MANIFEST);
+                    try {
+                        PackageParser.Package pkg = getParsedPackage();
+                        manifest = pkg != null ? WearPackageManifest.fromPackage(pkg) : null;
+                    } finally {
+                        mTrace.end(InstallStats.STAGE_MANIFEST);
+                    }
+                    if (manifest == null) {
+                        Log.e(TAG, "Could not parse apk information for " + packageName);
+                        return InstallerConstants.ERROR_INSTALL_PRECHECK_FAILED;
+                    }
+                }
+                return checkInstallable(mArgsBundle, mExistingPkgInfo, manifest,
+                        mSniffedManifest != null, this)
+                        ? InstallerConstants.STATUS_SUCCESS
+                        : InstallerConstants.ERROR_INSTALL_PRECHECK_FAILED;
+            } finally {
+                if (mStagedFile != null) {
+                    StagingArea.get(WearPackageInstallerService.this).release(mStagedFile);
+                }
+            }
+        }
+
+        /**
+         * @return true if the sniffed manifest is the one the platform will install, going by
+         *         the central directory of the staged APK
+         */
+        private boolean isSniffedManifestInstalled() {
+            try (InputStream in = mStaged.openRead()) {
+                // Session reads are file descriptors, which can be read from the end.
+                return in instanceof FileInputStream && mSniffer.matchesCentralDirectory(
+                        ((FileInputStream) in).getChannel());
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read the central directory of "
+                        + WearPackageArgs.getPackageName(mArgsBundle), e);
+                return false;
+            }
+        }
+
+        /**
+         * Copy the staged APK out of the session and parse it. This is only done the first time
+         * it is needed.
+         */
+        private PackageParser.Package getParsedPackage() {
+            if (!mCopiedOut) {
+                mCopiedOut = true;
+                final String packageName = WearPackageArgs.getPackageName(mArgsBundle);
                 try {
-                    fos.close();
+                    mStagedFile = WearPackageUtil.getFileFromStream(
+                            WearPackageInstallerService.this, mStaged.openRead(),
+                            packageName);
                 } catch (IOException e) {
-                    // ignore
+                    Log.e(TAG, "Could not read staged apk for " + packageName, e);
+                }
+                if (mStagedFile != null) {
+                    mParsedPkg = PackageUtil.getPackageInfo(mStagedFile);
                 }
             }
+            return mParsedPkg;
+        }
+
+        private File getStagedFile() {
+            return mStagedFile;
+        }
+
+        private InstallStats.Trace getTrace() {
+            return mTrace;
+        }
+
+        /** @return true if a newer request for the package has cancelled this install */
+        private boolean isSuperseded() {
+            return mTask.isCancelled();
+        }
+
+        /** @return the SHA-256 of the staged APK, null if it was not computed. */
+        private byte[] getApkDigest() {
+            return mApkDigest;
         }
     }
 
-    private class PackageInstallListener implements PackageInstallerImpl.InstallListener {
+    private class PackageInstallListener implements PackageInstallerBackend.InstallListener {
         private Context mContext;
         private PowerManager.WakeLock mWakeLock;
-        private int mStartId;
+        private Bundle mArgsBundle;
         private String mApplicationPackageName;
+        private StagedPackageChecker mChecker;
+        private InstallStats.Trace mTrace;
+        private long mCommitStartTime;
         private PackageInstallListener(Context context, PowerManager.WakeLock wakeLock,
-                int startId, String applicationPackageName) {
+                Bundle argsBundle, StagedPackageChecker checker, InstallStats.Trace trace) {
             mContext = context;
             mWakeLock = wakeLock;
-            mStartId = startId;
-            mApplicationPackageName = applicationPackageName;
+            mArgsBundle = argsBundle;
+            mApplicationPackageName = WearPackageArgs.getPackageName(argsBundle);
+            mChecker = checker;
+            mTrace = trace;
         }
 
         @Override
         public void installBeginning() {
             Log.i(TAG, "Package " + mApplicationPackageName + " is being installed.");
+            mCommitStartTime = SystemClock.elapsedRealtime();
         }
 
         @Override
         public void installSucceeded() {
             try {
+                if (mCommitStartTime == 0) {
+                    // Skipped by the checker, nothing was committed.
+                    Log.i(TAG, "Package " + mApplicationPackageName + " was already installed.");
+                    mTrace.finish(InstallerConstants.STATUS_ALREADY_INSTALLED);
+                    return;
+                }
+                mTrace.finish(InstallerConstants.STATUS_SUCCESS);
                 Log.i(TAG, "Package " + mApplicationPackageName + " was installed.");
-
-                // Delete tempFile from the file system.
-                File tempFile = WearPackageUtil.getTemporaryFile(mContext, mApplicationPackageName);
-                if (tempFile != null) {
-                    tempFile.delete();
+                if (mChecker.getApkDigest() != null) {
+                    ApkDigestIndex.get(mContext).put(mApplicationPackageName,
+                            mChecker.getApkDigest(),
+                            SystemClock.elapsedRealtime() - mCommitStartTime);
                 }
             } finally {
-                finishService(mWakeLock, mStartId);
+                finishService(mArgsBundle, mWakeLock, InstallerConstants.STATUS_SUCCESS);
             }
         }
 
         @Override
         public void installFailed(int errorCode, String errorDesc) {
-            Log.e(TAG, "Package install failed " + mApplicationPackageName
-                    + ", errorCode " + errorCode);
-            WearPackageUtil.removeFromPermStore(mContext, mApplicationPackageName);
-            finishService(mWakeLock, mStartId);
+            if (mCommitStartTime == 0 && mChecker.isSuperseded()) {
+                // Stopped before commit in favour of a newer request, whatever error that caused.
+                errorCode = InstallerConstants.ERROR_INSTALL_SUPERSEDED;
+            }
+            if (errorCode == InstallerConstants.ERROR_INSTALL_PRECHECK_FAILED
+                    || errorCode == InstallerConstants.ERROR_INSTALL_SUPERSEDED) {
+                // The reason was already logged by the checks; the package was never committed.
+                Log.w(TAG, "Package " + mApplicationPackageName + " was not installed.");
+            } else {
+                Log.e(TAG, "Package install failed " + mApplicationPackageName
+                        + ", errorCode " + errorCode);
+                WearPackageUtil.removeFromPermStore(mContext, mApplicationPackageName);
+            }
+            mTrace.finish(errorCode);
+            finishService(mArgsBundle, mWakeLock, errorCode);
         }
     }
 
     private class PackageDeleteObserver extends IPackageDeleteObserver.Stub {
+        private Bundle mArgsBundle;
         private PowerManager.WakeLock mWakeLock;
-        private int mStartId;
 
-        private PackageDeleteObserver(PowerManager.WakeLock wakeLock, int startId) {
+        private PackageDeleteObserver(Bundle argsBundle, PowerManager.WakeLock wakeLock) {
+            mArgsBundle = argsBundle;
             mWakeLock = wakeLock;
-            mStartId = startId;
         }
 
         public void packageDeleted(String packageName, int returnCode) {
@@ -630,7 +1004,7 @@ public class WearPackageInstallerService extends Service {
                             returnCode);
                 }
             } finally {
-                finishService(mWakeLock, mStartId);
+                finishService(mArgsBundle, mWakeLock, returnCode);
             }
         }
     }
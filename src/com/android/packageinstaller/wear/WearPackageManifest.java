@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.packageinstaller.wear;
+
+import android.content.Intent;
+import android.content.pm.FeatureInfo;
+import android.content.pm.PackageParser;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The subset of an APK's manifest that the wear installer needs in order to decide whether a
+ * package can be installed: package name, version, target SDK, requested permissions, required
+ * features and whether it has a launcher activity.
+ *
+ * It can either be decoded directly from the compiled (binary XML) AndroidManifest.xml, which
+ * lets us check a package without having a file for {@link PackageParser}, or be built from an
+ * already parsed {@link PackageParser.Package}.
+ */
+public class WearPackageManifest {
+    // Chunk types from frameworks/base/include/androidfw/ResourceTypes.h
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+
+    private static final int UTF8_FLAG = 1 << 8;
+
+    // Res_value data types
+    private static final int TYPE_STRING = 0x03;
+    private static final int TYPE_FIRST_INT = 0x10;
+    private static final int TYPE_LAST_INT = 0x1f;
+
+    // Attribute resource ids from android.R.attr
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+    private static final int ATTR_MAX_SDK_VERSION = 0x01010271;
+    private static final int ATTR_GL_ES_VERSION = 0x01010281;
+    private static final int ATTR_REQUIRED = 0x0101028e;
+
+    private String mPackageName;
+    private int mVersionCode;
+    private int mTargetSdkVersion;
+    private boolean mHasLauncherActivity;
+    private final ArrayList<String> mRequestedPermissions = new ArrayList<>();
+    private final ArrayList<FeatureInfo> mReqFeatures = new ArrayList<>();
+
+    private WearPackageManifest() {
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    public int getVersionCode() {
+        return mVersionCode;
+    }
+
+    public int getTargetSdkVersion() {
+        return mTargetSdkVersion;
+    }
+
+    public boolean hasLauncherActivity() {
+        return mHasLauncherActivity;
+    }
+
+    /** @return a mutable copy of the requested permissions */
+    public List<String> getRequestedPermissions() {
+        return new ArrayList<>(mRequestedPermissions);
+    }
+
+    public List<FeatureInfo> getReqFeatures() {
+        return mReqFeatures;
+    }
+
+    /**
+     * Build the manifest summary from a package that has been fully parsed by
+     * {@link PackageParser}.
+     */
+    public static WearPackageManifest fromPackage(PackageParser.Package pkg) {
+        WearPackageManifest manifest = new WearPackageManifest();
+        manifest.mPackageName = pkg.packageName;
+        manifest.mVersionCode = pkg.mVersionCode;
+        manifest.mTargetSdkVersion = pkg.applicationInfo.targetSdkVersion;
+        manifest.mHasLauncherActivity = WearPackageUtil.hasLauncherActivity(pkg);
+        if (pkg.requestedPermissions != null) {
+            manifest.mRequestedPermissions.addAll(pkg.requestedPermissions);
+        }
+        if (pkg.reqFeatures != null) {
+            manifest.mReqFeatures.addAll(pkg.reqFeatures);
+        }
+        return manifest;
+    }
+
+    /**
+     * Decode a compiled AndroidManifest.xml.
+     *
+     * @throws IOException if the data is malformed, or uses a construct (e.g. a resource
+     *         reference for a value we need) that can only be resolved by a full parse.
+     */
+    public static WearPackageManifest parse(byte[] data) throws IOException {
+        try {
+            return new Decoder(data).decode();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated binary manifest", e);
+        }
+    }
+
+    private static final class Decoder {
+        private final ByteBuffer mBuf;
+        private final WearPackageManifest mManifest = new WearPackageManifest();
+        private final Deque<String> mElements = new ArrayDeque<>();
+        private String[] mStrings = new String[0];
+        private int[] mResourceIds = new int[0];
+        private boolean mTargetSdkSeen;
+        private boolean mFilterHasMain;
+        private boolean mFilterHasLauncherCategory;
+
+        Decoder(byte[] data) {
+            mBuf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        WearPackageManifest decode() throws IOException {
+            if (u16(0) != RES_XML_TYPE) {
+                throw new IOException("Not a binary XML document");
+            }
+            int pos = u16(2);
+            final int end = Math.min(mBuf.getInt(4), mBuf.limit());
+            mManifest.mTargetSdkVersion = 1;
+            while (pos + 8 <= end) {
+                final int type = u16(pos);
+                final int headerSize = u16(pos + 2);
+                final int size = mBuf.getInt(pos + 4);
+                if (size < 8 || pos + size > end) {
+                    throw new IOException("Bad chunk size " + size + " at " + pos);
+                }
+                switch (type) {
+                    case RES_STRING_POOL_TYPE:
+                        readStringPool(pos, headerSize, size);
+                        break;
+                    case RES_XML_RESOURCE_MAP_TYPE:
+                        mResourceIds = new int[(size - headerSize) / 4];
+                        for (int i = 0; i < mResourceIds.length; i++) {
+                            mResourceIds[i] = mBuf.getInt(pos + headerSize + i * 4);
+                        }
+                        break;
+                    case RES_XML_START_ELEMENT_TYPE:
+                        startElement(pos + headerSize);
+                        break;
+                    case RES_XML_END_ELEMENT_TYPE:
+                        endElement();
+                        break;
+                }
+                pos += size;
+            }
+            if (mManifest.mPackageName == null) {
+                throw new IOException("No package name in manifest");
+            }
+            return mManifest;
+        }
+
+        private void startElement(int ext) throws IOException {
+            final String name = String.valueOf(string(mBuf.getInt(ext + 4)));
+            final String parent = mElements.peek();
+            final int depth = mElements.size();
+            mElements.push(name);
+
+            if (depth == 0) {
+                if (!"manifest".equals(name)) {
+                    throw new IOException("Root element is " + name);
+                }
+                mManifest.mPackageName = stringAttr(ext, 0, "package");
+                mManifest.mVersionCode = intAttr(ext, ATTR_VERSION_CODE, "versionCode", 0);
+            } else if (depth == 1 && "uses-sdk".equals(name)) {
+                Integer minSdk = sdkAttr(ext, ATTR_MIN_SDK_VERSION, "minSdkVersion");
+                Integer targetSdk = sdkAttr(ext, ATTR_TARGET_SDK_VERSION, "targetSdkVersion");
+                // Same defaulting as PackageParser: targetSdkVersion falls back to minSdkVersion.
+                if (targetSdk != null) {
+                    mManifest.mTargetSdkVersion = targetSdk;
+                    mTargetSdkSeen = true;
+                } else if (minSdk != null && !mTargetSdkSeen) {
+                    mManifest.mTargetSdkVersion = minSdk;
+                }
+            } else if (depth == 1 && ("uses-permission".equals(name)
+                    || "uses-permission-sdk-23".equals(name)
+                    || "uses-permission-sdk-m".equals(name))) {
+                String perm = stringAttr(ext, ATTR_NAME, "name");
+                int maxSdk = intAttr(ext, ATTR_MAX_SDK_VERSION, "maxSdkVersion", 0);
+                if (perm != null && (maxSdk == 0 || maxSdk >= Build.VERSION.SDK_INT)
+                        && !mManifest.mRequestedPermissions.contains(perm)) {
+                    mManifest.mRequestedPermissions.add(perm.intern());
+                }
+            } else if (depth == 1 && "uses-feature".equals(name)) {
+                FeatureInfo fi = new FeatureInfo();
+                fi.name = stringAttr(ext, ATTR_NAME, "name");
+                if (fi.name == null) {
+                    fi.reqGlEsVersion = intAttr(ext, ATTR_GL_ES_VERSION, "glEsVersion",
+                            FeatureInfo.GL_ES_VERSION_UNDEFINED);
+                }
+                if (intAttr(ext, ATTR_REQUIRED, "required", 1) != 0) {
+                    fi.flags |= FeatureInfo.FLAG_REQUIRED;
+                }
+                mManifest.mReqFeatures.add(fi);
+            } else if ("intent-filter".equals(name)) {
+                mFilterHasMain = false;
+                mFilterHasLauncherCategory = false;
+            } else if ("intent-filter".equals(parent) && depth == 4) {
+                String value = stringAttr(ext, ATTR_NAME, "name");
+                if ("action".equals(name) && Intent.ACTION_MAIN.equals(value)) {
+                    mFilterHasMain = true;
+                } else if ("category".equals(name) && (Intent.CATEGORY_LAUNCHER.equals(value)
+                        || Intent.CATEGORY_INFO.equals(value))) {
+                    mFilterHasLauncherCategory = true;
+                }
+            }
+        }
+
+        private void endElement() {
+            final String name = mElements.poll();
+            final String parent = mElements.peek();
+            if ("intent-filter".equals(name) && mElements.size() == 3
+                    && ("activity".equals(parent) || "activity-alias".equals(parent))) {
+                if (mFilterHasMain && mFilterHasLauncherCategory) {
+                    mManifest.mHasLauncherActivity = true;
+                }
+            }
+        }
+
+        /** @return the offset of the named attribute's Res_value, or -1 if it is absent. */
+        private int findAttr(int ext, int resId, String attrName) {
+            final int attrStart = u16(ext + 8);
+            final int attrSize = u16(ext + 10);
+            final int attrCount = u16(ext + 12);
+            for (int i = 0; i < attrCount; i++) {
+                final int attr = ext + attrStart + i * attrSize;
+                final int nameIndex = mBuf.getInt(attr + 4);
+                if (resId != 0 && nameIndex >= 0 && nameIndex < mResourceIds.length
+                        && mResourceIds[nameIndex] != 0) {
+                    if (mResourceIds[nameIndex] == resId) {
+                        return attr;
+                    }
+                } else if (attrName.equals(string(nameIndex))) {
+                    return attr;
+                }
+            }
+            return -1;
+        }
+
+        private String stringAttr(int ext, int resId, String attrName) throws IOException {
+            final int attr = findAttr(ext, resId, attrName);
+            if (attr < 0) {
+                return null;
+            }
+            final int dataType = mBuf.get(attr + 15) & 0xff;
+            if (dataType == TYPE_STRING) {
+                return string(mBuf.getInt(attr + 16));
+            }
+            final int rawValue = mBuf.getInt(attr + 8);
+            if (rawValue >= 0) {
+                return string(rawValue);
+            }
+            throw new IOException("Attribute " + attrName + " needs resource resolution");
+        }
+
+        private int intAttr(int ext, int resId, String attrName, int defValue)
+                throws IOException {
+            final int attr = findAttr(ext, resId, attrName);
+            if (attr < 0) {
+                return defValue;
+            }
+            final int dataType = mBuf.get(attr + 15) & 0xff;
+            if (dataType >= TYPE_FIRST_INT && dataType <= TYPE_LAST_INT) {
+                return mBuf.getInt(attr + 16);
+            }
+            throw new IOException("Attribute " + attrName + " is not an integer");
+        }
+
+        /**
+         * SDK versions can also be codenames of pre-release platforms, or resource references.
+         * Telling what those target decides the permission checks, so they are left to the full
+         * parse rather than guessed at.
+         */
+        private Integer sdkAttr(int ext, int resId, String attrName) throws IOException {
+            final int attr = findAttr(ext, resId, attrName);
+            if (attr < 0) {
+                return null;
+            }
+            final int dataType = mBuf.get(attr + 15) & 0xff;
+            if (dataType < TYPE_FIRST_INT || dataType > TYPE_LAST_INT) {
+                throw new IOException("Attribute " + attrName + " is not a plain SDK version");
+            }
+            return mBuf.getInt(attr + 16);
+        }
+
+        private String string(int index) {
+            return index >= 0 && index < mStrings.length ? mStrings[index] : null;
+        }
+
+        private void readStringPool(int pos, int headerSize, int size) throws IOException {
+            final int stringCount = mBuf.getInt(pos + 8);
+            final int flags = mBuf.getInt(pos + 16);
+            final int stringsStart = pos + mBuf.getInt(pos + 20);
+            final boolean utf8 = (flags & UTF8_FLAG) != 0;
+            // Sizes come from the APK; check them before allocating anything.
+            if (stringCount < 0 || (long) stringCount * 4 > size - headerSize) {
+                throw new IOException("Bad string count " + stringCount);
+            }
+            mStrings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                int offset = stringsStart + mBuf.getInt(pos + headerSize + i * 4);
+                mStrings[i] = utf8 ? utf8String(offset) : utf16String(offset);
+            }
+        }
+
+        private String utf8String(int offset) throws IOException {
+            // Length in UTF-16 units first, then in bytes; each is one or two bytes long.
+            int len = mBuf.get(offset) & 0xff;
+            offset += (len & 0x80) != 0 ? 2 : 1;
+            len = mBuf.get(offset) & 0xff;
+            if ((len & 0x80) != 0) {
+                len = ((len & 0x7f) << 8) | (mBuf.get(offset + 1) & 0xff);
+                offset += 2;
+            } else {
+                offset += 1;
+            }
+            checkLength(offset, len);
+            return new String(mBuf.array(), offset, len, StandardCharsets.UTF_8);
+        }
+
+        private String utf16String(int offset) throws IOException {
+            int len = u16(offset);
+            if ((len & 0x8000) != 0) {
+                len = ((len & 0x7fff) << 16) | u16(offset + 2);
+                offset += 4;
+            } else {
+                offset += 2;
+            }
+            checkLength(offset, (long) len * 2);
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                chars[i] = (char) u16(offset + i * 2);
+            }
+            return new String(chars);
+        }
+
+        /** Check that a string of {@code bytes} at {@code offset} is within the manifest. */
+        private void checkLength(int offset, long bytes) throws IOException {
+            if (offset < 0 || bytes > mBuf.limit() - offset) {
+                throw new IOException("String of " + bytes + " bytes at " + offset
+                        + " overruns the manifest");
+            }
+        }
+
+        private int u16(int offset) {
+            return mBuf.getShort(offset) & 0xffff;
+        }
+    }
+}
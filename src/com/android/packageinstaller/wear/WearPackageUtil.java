@@ -24,13 +24,19 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.packageinstaller.StagingArea;
+import com.android.packageinstaller.StreamTransfer;
+
 import org.tukaani.xz.LZMAInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
 import org.tukaani.xz.XZInputStream;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,7 +46,7 @@ public class WearPackageUtil {
     private static final String TAG = "WearablePkgInstaller";
 
     private static final String COMPRESSION_LZMA = "lzma";
-    private static final String COMPRESSION_XZ = "xz";
+    static final String COMPRESSION_XZ = "xz";
 
     private static final String SHOW_PERMS_SERVICE_PKG_NAME = "com.google.android.wearable.app";
     private static final String SHOW_PERMS_SERVICE_CLASS_NAME =
@@ -48,25 +54,15 @@ public class WearPackageUtil {
     private static final String EXTRA_PACKAGE_NAME
             = "com.google.android.clockwork.EXTRA_PACKAGE_NAME";
 
-    public static File getTemporaryFile(Context context, String packageName) {
-        try {
-            File newFileDir = new File(context.getFilesDir(), "tmp");
-            newFileDir.mkdirs();
-            Os.chmod(newFileDir.getAbsolutePath(), 0771);
-            File newFile = new File(newFileDir, packageName + ".apk");
-            return newFile;
-        }   catch (ErrnoException e) {
-            Log.e(TAG, "Failed to open.", e);
-            return null;
-        }
-    }
-
-    public static File getIconFile(final Context context, final String packageName) {
+    /**
+     * @return the directory of the icon files, see {@link WearIconCache}
+     */
+    public static File getIconDir(final Context context) {
         try {
             File newFileDir = new File(context.getFilesDir(), "images/icons");
             newFileDir.mkdirs();
             Os.chmod(newFileDir.getAbsolutePath(), 0771);
-            return new File(newFileDir, packageName + ".icon");
+            return newFileDir;
         }   catch (ErrnoException e) {
             Log.e(TAG, "Failed to open.", e);
             return null;
@@ -74,23 +70,26 @@ public class WearPackageUtil {
     }
 
     /**
-     * In order to make sure that the Wearable Asset Manager has a reasonable apk that can be used
-     * by the PackageManager, we will parse it before sending it to the PackageManager.
-     * Unfortunately, PackageParser needs a file to parse. So, we have to temporarily convert the fd
-     * to a File.
+     * Wrap the asset {@code fd} in a stream that yields the uncompressed APK.
      *
-     * @param context
-     * @param fd FileDescriptor to convert to File
-     * @param packageName Name of package, will define the name of the file
+     * @param fd FileDescriptor of the asset, will be closed when the stream is closed
      * @param compressionAlg Can be null. For ALT mode the APK will be compressed. We will
      *                       decompress it here
+     * @return the stream, or null if the fd is invalid or the compression header can't be read
      */
-    public static File getFileFromFd(Context context, ParcelFileDescriptor fd,
-            String packageName, String compressionAlg) {
-        File newFile = getTemporaryFile(context, packageName);
+    public static InputStream getDecompressedInputStream(ParcelFileDescriptor fd,
+            String compressionAlg) {
         if (fd == null || fd.getFileDescriptor() == null)  {
             return null;
         }
+        if (TextUtils.equals(compressionAlg, COMPRESSION_XZ)) {
+            // Multi-block XZ files are decoded on several cores. Anything else (single block,
+            // pipes, LZMA) goes through the single-threaded decoders below.
+            InputStream parallel = ParallelXZInputStream.open(fd);
+            if (parallel != null) {
+                return parallel;
+            }
+        }
         InputStream fr = new ParcelFileDescriptor.AutoCloseInputStream(fd);
         try {
             if (TextUtils.equals(compressionAlg, COMPRESSION_XZ)) {
@@ -100,31 +99,96 @@ public class WearPackageUtil {
             }
         } catch (IOException e) {
             Log.e(TAG, "Compression was set to " + compressionAlg + ", but could not decode ", e);
+            try {
+                fr.close();
+            } catch (IOException e1) {
+                Log.e(TAG, "Failed to close the file from FD ", e1);
+            }
             return null;
         }
+        return fr;
+    }
+
+    /**
+     * Find out how large the APK in the asset {@code fd} is once decompressed, without moving the
+     * fd offset: from the index of an XZ file, the header of an LZMA file, or the size of an
+     * uncompressed one.
+     *
+     * @return the size in bytes, or -1 if it can't be known up front (e.g. the fd is a pipe)
+     */
+    public static long getUncompressedSize(ParcelFileDescriptor fd, String compressionAlg) {
+        if (fd == null || fd.getFileDescriptor() == null)  {
+            return -1;
+        }
+        try {
+            if (!OsConstants.S_ISREG(Os.fstat(fd.getFileDescriptor()).st_mode)) {
+                return -1;
+            }
+            if (TextUtils.equals(compressionAlg, COMPRESSION_XZ)) {
+                // Not closed, that would close the fd.
+                FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+                return new SeekableXZInputStream(new ParallelXZInputStream
+                        .ChannelSeekableInputStream(in.getChannel())).length();
+            } else if (TextUtils.equals(compressionAlg, COMPRESSION_LZMA)) {
+                // Properties byte, dictionary size, then the little-endian 64-bit size which is
+                // all ones when it was not known to the encoder.
+                byte[] header = new byte[13];
+                if (Os.pread(fd.getFileDescriptor(), header, 0, header.length, 0)
+                        != header.length) {
+                    return -1;
+                }
+                long size = 0;
+                for (int i = 12; i >= 5; i--) {
+                    size = (size << 8) | (header[i] & 0xff);
+                }
+                return size;
+            } else {
+                return fd.getStatSize();
+            }
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "Could not get the uncompressed size: " + e.getMessage());
+            return -1;
+        }
+    }
 
-        int nRead;
-        byte[] data = new byte[1024];
+    /**
+     * PackageParser needs a file to parse. For the cases where the streamed manifest is not
+     * enough, copy an APK stream to a file in the {@link StagingArea}. The caller must
+     * {@link StagingArea#release} it.
+     *
+     * @param context
+     * @param in Stream to copy, will be closed
+     * @param packageName Name of package, will define the name of the file
+     */
+    public static File getFileFromStream(Context context, InputStream in, String packageName) {
+        final StagingArea staging = StagingArea.get(context);
+        File newFile = null;
         try {
+            newFile = staging.reserve(packageName, -1);
             final FileOutputStream fo = new FileOutputStream(newFile);
-            while ((nRead = fr.read(data, 0, data.length)) != -1) {
-                fo.write(data, 0, nRead);
+            try {
+                StreamTransfer.copy(in, fo, null);
+            } finally {
+                fo.close();
             }
-            fo.flush();
-            fo.close();
             Os.chmod(newFile.getAbsolutePath(), 0644);
+            staging.commit(newFile);
             return newFile;
         } catch (IOException e) {
-            Log.e(TAG, "Reading from Asset FD or writing to temp file failed ", e);
+            Log.e(TAG, "Reading from stream or writing to temp file failed ", e);
+            if (newFile != null) {
+                staging.release(newFile);
+            }
             return null;
         }   catch (ErrnoException e) {
             Log.e(TAG, "Could not set permissions on file ", e);
+            staging.release(newFile);
             return null;
         } finally {
             try {
-                fr.close();
+                in.close();
             } catch (IOException e) {
-                Log.e(TAG, "Failed to close the file from FD ", e);
+                Log.e(TAG, "Failed to close the stream ", e);
             }
         }
     }